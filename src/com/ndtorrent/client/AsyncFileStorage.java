@@ -0,0 +1,168 @@
+package com.ndtorrent.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class AsyncFileStorage extends FileStorage {
+	// Same layout as FileStorage, but reads and writes can also be issued
+	// without blocking. An operation that spans multiple files is split in
+	// one request per extent, and completes when all of them have. The
+	// handlers are called by the threads of the default channel group.
+
+	public AsyncFileStorage(BTFile[] files, String parent_path,
+			ExtentTable extents) {
+		super(files, parent_path, extents);
+	}
+
+	@Override
+	public boolean open() throws IOException {
+		for (BTFile f : files) {
+			f.setAsynchronous(true);
+		}
+		return super.open();
+	}
+
+	public <A> void read(long offset, ByteBuffer dst, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		// Fills the remaining bytes of the buffer. On completion, the
+		// position of the buffer is at its limit.
+		transfer(offset, dst, false, attachment, handler);
+	}
+
+	public <A> void write(long offset, ByteBuffer src, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		// Writes the remaining bytes of the buffer. On completion, the
+		// position of the buffer is at its limit.
+		transfer(offset, src, true, attachment, handler);
+	}
+
+	private <A> void transfer(long offset, ByteBuffer buffer, boolean to_file,
+			A attachment, CompletionHandler<Long, ? super A> handler) {
+
+		long end = offset + buffer.remaining();
+		int first = extents.findExtent(offset);
+		int last = first;
+		while (last < extents.numExtents() && extents.getOffset(last) < end) {
+			last++;
+		}
+
+		Transfer<A> transfer = new Transfer<A>(buffer, to_file, last - first,
+				attachment, handler);
+		for (int e = first; e < last; e++) {
+			long from = Math.max(extents.getOffset(e), offset);
+			long to = Math.min(extents.getEnd(e), end);
+			ByteBuffer part = buffer.duplicate();
+			part.position(buffer.position() + (int) (from - offset));
+			part.limit(part.position() + (int) (to - from));
+
+			BTFile f = files[extents.getFile(e)];
+			if (f.isPadding()) {
+				// Pad files read as zeros, and writes to them are dropped.
+				skip(new ByteBuffer[] { part }, part.remaining(), !to_file);
+				transfer.done();
+				continue;
+			}
+			AsynchronousFileChannel channel;
+			try {
+				synchronized (f) {
+					if (!f.isOpen()) {
+						if (!to_file)
+							throw new IOException("file not created: "
+									+ f.getName());
+						f.createFileAndPath(parent_path);
+					}
+				}
+				channel = f.getAsyncChannel();
+			} catch (IOException exc) {
+				transfer.failed(exc, null);
+				continue;
+			}
+			transfer.issue(new Segment(channel, part, from - f.getOffset()));
+		}
+	}
+
+	private static final class Segment {
+		final AsynchronousFileChannel channel;
+		final ByteBuffer part;
+		long position; // file position
+
+		Segment(AsynchronousFileChannel channel, ByteBuffer part,
+				long position) {
+			this.channel = channel;
+			this.part = part;
+			this.position = position;
+		}
+	}
+
+	private static final class Transfer<A> implements
+			CompletionHandler<Integer, Segment> {
+		// A multi-extent operation. Short reads and writes of a segment
+		// are continued until the segment is done.
+
+		private final ByteBuffer buffer;
+		private final int length;
+		private final boolean to_file;
+		private final A attachment;
+		private final CompletionHandler<Long, ? super A> handler;
+
+		private final AtomicInteger pending;
+		private volatile Throwable error;
+
+		Transfer(ByteBuffer buffer, boolean to_file, int nsegments,
+				A attachment, CompletionHandler<Long, ? super A> handler) {
+			this.buffer = buffer;
+			this.length = buffer.remaining();
+			this.to_file = to_file;
+			this.attachment = attachment;
+			this.handler = handler;
+			pending = new AtomicInteger(nsegments);
+			if (nsegments == 0) {
+				pending.set(1);
+				done();
+			}
+		}
+
+		void issue(Segment s) {
+			if (to_file)
+				s.channel.write(s.part, s.position, s, this);
+			else
+				s.channel.read(s.part, s.position, s, this);
+		}
+
+		@Override
+		public void completed(Integer n, Segment s) {
+			if (n < 0) {
+				failed(new EOFException("end of file"), s);
+				return;
+			}
+			s.position += n;
+			if (s.part.hasRemaining() && error == null) {
+				issue(s);
+				return;
+			}
+			done();
+		}
+
+		@Override
+		public void failed(Throwable exc, Segment s) {
+			error = exc;
+			done();
+		}
+
+		void done() {
+			if (pending.decrementAndGet() > 0)
+				return;
+			if (error != null) {
+				handler.failed(error, attachment);
+				return;
+			}
+			buffer.position(buffer.position() + length);
+			handler.completed((long) length, attachment);
+		}
+	}
+
+}
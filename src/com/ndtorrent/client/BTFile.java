@@ -4,16 +4,38 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedMap;
 
-public final class BTFile implements Comparable<Long> {
+public final class BTFile {
+	// Files are mapped in windows, because a single MappedByteBuffer
+	// cannot address more than 2 GiB.
+	static final long MAP_WINDOW_SIZE = 256 * 1024 * 1024;
+
 	private RandomAccessFile file;
+	private File path;
 	private String name;
 	private long length;
 	private long offset;
 
-	// boolean skip;
+	private boolean memory_mapped;
+	private MappedByteBuffer[] windows;
+
+	private boolean asynchronous;
+	private AsynchronousFileChannel async_channel;
+
+	// BEP 47 pad files align the next file to a piece boundary. They
+	// consist of zeros and are never created on disk.
+	private boolean padding;
+
+	private Priority priority = Priority.NORMAL;
+	// True if no wanted piece overlaps the file.
+	private boolean skipped;
 
 	public BTFile(String name, long length, long offset) {
 		// Creates a BTFile instance without opening the file.
@@ -58,6 +80,10 @@ public final class BTFile implements Comparable<Long> {
 
 			files[i] = new BTFile(path, length, offset);
 			offset += length.longValue();
+
+			Object attr = m.get("attr");
+			if (attr instanceof String && ((String) attr).indexOf('p') >= 0)
+				files[i].padding = true;
 		}
 
 		return files;
@@ -75,23 +101,120 @@ public final class BTFile implements Comparable<Long> {
 		return offset;
 	}
 
-	public void createFileAndPath(String parent_path) throws IOException {
+	public boolean isPadding() {
+		return padding;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+	public void setSkipped(boolean skipped) {
+		// Skipped files are not created by the storage.
+		this.skipped = skipped;
+	}
+
+	public FileChannel getChannel() {
+		// Returns null if the file isn't open.
+		RandomAccessFile f = file;
+		return f != null ? f.getChannel() : null;
+	}
+
+	public boolean isOpen() {
+		return file != null;
+	}
+
+	public long lastModified() {
+		// Returns 0 if the file hasn't been created.
+		return path != null ? path.lastModified() : 0;
+	}
+
+	public boolean isMemoryMapped() {
+		return memory_mapped;
+	}
+
+	public void setMemoryMapped(boolean mapped) {
+		// Must be called before createFileAndPath. Windows are mapped lazily,
+		// on first access.
+		memory_mapped = mapped;
+	}
+
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	public void setAsynchronous(boolean asynchronous) {
+		// Must be called before createFileAndPath. The file is also opened
+		// as an AsynchronousFileChannel, next to the blocking channel.
+		this.asynchronous = asynchronous;
+	}
+
+	public AsynchronousFileChannel getAsyncChannel() {
+		// Returns null if the file isn't asynchronous or isn't open.
+		return async_channel;
+	}
+
+	public boolean createFileAndPath(String parent_path) throws IOException {
 		// Create the file if doesn't exist, or has not the right length.
 		// The file is opened for reading and for writing.
+		// Returns true if the file already existed and had data.
 		String parent = new File(name).getParent();
 		new File(parent_path + "./" + (parent != null ? parent : "")).mkdirs();
 		File f = new File(parent_path + "./" + name);
+		boolean existed = f.length() > 0;
 		f.setReadable(true, true);
 		f.setWritable(true, true);
 		file = new RandomAccessFile(f, "rw");
+		path = f;
 		if (file.length() != length) {
 			file.setLength(length);
 		}
+		if (memory_mapped) {
+			int nwindows = (int) ((length + MAP_WINDOW_SIZE - 1) / MAP_WINDOW_SIZE);
+			windows = new MappedByteBuffer[nwindows];
+		}
+		if (asynchronous) {
+			async_channel = AsynchronousFileChannel.open(f.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		return existed;
+	}
+
+	private synchronized MappedByteBuffer getWindow(int index)
+			throws IOException {
+		if (windows[index] == null) {
+			long position = index * MAP_WINDOW_SIZE;
+			long size = Math.min(MAP_WINDOW_SIZE, length - position);
+			windows[index] = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, position, size);
+		}
+		return windows[index];
 	}
 
 	public void close() {
 		try {
+			if (windows != null) {
+				for (MappedByteBuffer w : windows) {
+					if (w != null)
+						w.force();
+				}
+				// The mappings are released when the buffers are collected.
+				windows = null;
+			}
+			if (async_channel != null) {
+				async_channel.close();
+				async_channel = null;
+			}
 			file.close();
+			file = null;
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -108,20 +231,130 @@ public final class BTFile implements Comparable<Long> {
 		ByteBuffer bb = src.duplicate();
 		int remaining = (int) Math.min(bb.remaining(), length - file_position);
 		bb.limit(bb.position() + remaining);
-		int n = file.getChannel().write(bb, file_position);
+		int n = memory_mapped ? transfer(bb, file_position, true) : file
+				.getChannel().write(bb, file_position);
 		src.position(bb.position());
 		return n;
 	}
 
+	public long write(ByteBuffer[] srcs, long file_position)
+			throws IOException {
+		// Gathering version of write(). The buffers are written in order,
+		// as one operation, until the end of the file is reached.
+		if (file_position >= length)
+			return -1;
+		long room = length - file_position;
+		List<ByteBuffer> parts = new ArrayList<ByteBuffer>(srcs.length);
+		for (ByteBuffer src : srcs) {
+			if (room == 0)
+				break;
+			ByteBuffer bb = src.duplicate();
+			int remaining = (int) Math.min(bb.remaining(), room);
+			bb.limit(bb.position() + remaining);
+			parts.add(bb);
+			room -= remaining;
+		}
+
+		long n = 0;
+		if (memory_mapped) {
+			for (ByteBuffer bb : parts) {
+				n += transfer(bb, file_position + n, true);
+			}
+		} else {
+			// Writes move the channel position one at a time; reads are
+			// positional and aren't affected by it.
+			FileChannel channel = file.getChannel();
+			ByteBuffer[] array = parts.toArray(new ByteBuffer[parts.size()]);
+			long expected = length - file_position - room;
+			synchronized (channel) {
+				channel.position(file_position);
+				while (n < expected) {
+					n += channel.write(array);
+				}
+			}
+		}
+
+		long consumed = n;
+		for (ByteBuffer src : srcs) {
+			int count = (int) Math.min(src.remaining(), consumed);
+			src.position(src.position() + count);
+			consumed -= count;
+		}
+		return n;
+	}
+
 	public int read(ByteBuffer dst, long file_position) throws IOException {
 		// Starting at buffer's current position, we read as many bytes
 		// as possible from the given file position.
-		return file.getChannel().read(dst, file_position);
+		if (!memory_mapped)
+			return file.getChannel().read(dst, file_position);
+		if (file_position >= length)
+			return -1; // same as FileChannel.read()
+		ByteBuffer bb = dst.duplicate();
+		int remaining = (int) Math.min(bb.remaining(), length - file_position);
+		bb.limit(bb.position() + remaining);
+		int n = transfer(bb, file_position, false);
+		dst.position(bb.position());
+		return n;
+	}
+
+	public long read(ByteBuffer[] dsts, long file_position) throws IOException {
+		// Scattering version of read(). The buffers are filled in order,
+		// until the end of the file is reached.
+		if (file_position >= length)
+			return -1;
+		long n = 0;
+		for (ByteBuffer dst : dsts) {
+			while (dst.hasRemaining() && file_position + n < length) {
+				int count = read(dst, file_position + n);
+				if (count <= 0)
+					return n;
+				n += count;
+			}
+		}
+		return n;
 	}
 
-	@Override
-	public int compareTo(Long other_offset) {
-		return Long.signum(offset - other_offset.longValue());
+	public void force() throws IOException {
+		// Forces any changes to the storage device.
+		if (windows != null) {
+			for (MappedByteBuffer w : windows) {
+				if (w != null)
+					w.force();
+			}
+		} else if (file != null) {
+			file.getChannel().force(false);
+		}
+		if (async_channel != null)
+			async_channel.force(false);
+	}
+
+	private int transfer(ByteBuffer bb, long file_position, boolean to_file)
+			throws IOException {
+		// Copies the remaining bytes of the buffer into (or out of) the
+		// mapped windows. The caller has already trimmed the buffer so
+		// that it doesn't cross the end of the file.
+		int n = bb.remaining();
+		while (bb.hasRemaining()) {
+			int index = (int) (file_position / MAP_WINDOW_SIZE);
+			int window_offset = (int) (file_position % MAP_WINDOW_SIZE);
+			// Each access uses its own view, so that the disk threads
+			// don't share buffer positions.
+			ByteBuffer window = getWindow(index).duplicate();
+			window.position(window_offset);
+			int count = Math.min(bb.remaining(), window.remaining());
+			if (to_file) {
+				ByteBuffer part = bb.duplicate();
+				part.limit(part.position() + count);
+				window.put(part);
+				bb.position(part.position());
+			} else {
+				window.limit(window_offset + count);
+				bb.put(window);
+			}
+			file_position += count;
+		}
+		return n;
 	}
 
 }
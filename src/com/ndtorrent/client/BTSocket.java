@@ -7,11 +7,23 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 public final class BTSocket {
 	public static final int MAX_DATA_SIZE = 1 + 8 + 32 * 1024;
 	public static final int MAX_HANDSHAKE_SECONDS = 25;
 	public static final int TCP_SEND_BUFFER_SIZE = 4 * 1024;
+	public static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+	// Longer frames that haven't been received completely are moved out of
+	// the receive buffer, and the rest of them is read directly into the
+	// message. Shorter ones wait in the buffer for the next read, and so
+	// do PIECE frames, whose payload is copied from the buffer straight to
+	// the piece.
+	static final int MAX_STAGED_FRAME = 1024;
+
+	// Messages that are written together, with one gathering write.
+	static final int MAX_OUTPUT_BATCH = 64;
 
 	private SocketChannel channel;
 
@@ -26,12 +38,25 @@ public final class BTSocket {
 	private HandshakeMsg output_handshake;
 
 	private boolean is_input_error; // input stream has closed or MAX_DATA_SIZE
-	private ByteBuffer input_data;
-	private ByteBuffer input_prefix = ByteBuffer.allocate(4);
-
+	private ByteBuffer input_data; // a long frame that is read directly
+
+	// Frames as they arrive, <length><ID><Payload>, between position and
+	// limit. Each read fills the free space, so it may bring in many
+	// messages at once. The direct buffer is allocated by the first read
+	// after the handshake; sockets that never get there hold none.
+	private ByteBuffer receive = ByteBuffer.allocate(0);
+	private InputFrame input_frame = new InputFrame();
+
+	// The output batch, as <length><ID><Payload> buffer pairs, of which
+	// [output_first, output_count) are yet to be written. A message that
+	// is sent from the files closes the batch; its region is transferred
+	// after the buffers.
 	private boolean is_output_error;
-	private ByteBuffer output_data;
-	private ByteBuffer output_prefix = ByteBuffer.allocate(4);
+	private ByteBuffer[] output_buffers = new ByteBuffer[2 * MAX_OUTPUT_BATCH];
+	private ByteBuffer[] output_prefixes = new ByteBuffer[MAX_OUTPUT_BATCH];
+	private int output_first;
+	private int output_count;
+	private FileRegion output_region;
 
 	private long input_total;
 	private long output_total;
@@ -53,6 +78,10 @@ public final class BTSocket {
 			e.printStackTrace();
 		}
 
+		for (int i = 0; i < MAX_OUTPUT_BATCH; i++) {
+			output_prefixes[i] = ByteBuffer.allocate(4);
+		}
+
 		long now = System.nanoTime();
 		created_at = now;
 		joined_at = now;
@@ -132,36 +161,67 @@ public final class BTSocket {
 	}
 
 	public void processInput() {
+		// Nothing is read while a complete frame is waiting to be taken.
 		if (is_input_error)
 			return;
 		try {
-			// When a ByteBuffer is full no bytes are read.
-			is_input_error = readInput(input_prefix) < 0;
-			if (!input_prefix.hasRemaining()) {
-				if (input_data == null) {
-					int length = input_prefix.getInt(0);
-					if (length < 0 || length > MAX_DATA_SIZE) {
-						is_input_error = true;
-						return;
-					}
-					input_data = ByteBuffer.allocate(length);
-				}
-				is_input_error = readInput(input_data) < 0;
+			if (input_data != null) {
+				if (input_data.hasRemaining())
+					is_input_error = readInput(input_data) < 0;
+				return;
 			}
+			if (hasReceivedFrame())
+				return;
+			if (receive.capacity() == 0) {
+				receive = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+				receive.flip();
+			}
+			receive.compact();
+			try {
+				is_input_error = readInput(receive) < 0;
+			} finally {
+				receive.flip();
+			}
+			checkNextFrame();
 		} catch (IOException e) {
 			is_input_error = true;
 			// Can a network outage raise an exception?
 		}
 	}
 
+	private void checkNextFrame() {
+		if (receive.remaining() < 4)
+			return;
+		int length = receive.getInt(receive.position());
+		if (length < 0 || length > MAX_DATA_SIZE) {
+			is_input_error = true;
+			return;
+		}
+		if (length <= MAX_STAGED_FRAME || receive.remaining() >= 4 + length)
+			return;
+		if (receive.remaining() < 5
+				|| receive.get(receive.position() + 4) == Message.PIECE)
+			return;
+
+		receive.position(receive.position() + 4);
+		input_data = ByteBuffer.allocate(length);
+		input_data.put(receive);
+	}
+
+	private boolean hasReceivedFrame() {
+		// True if the receive buffer holds a complete, valid frame.
+		if (receive.remaining() < 4)
+			return false;
+		int length = receive.getInt(receive.position());
+		return length >= 0 && length <= MAX_DATA_SIZE
+				&& receive.remaining() >= 4 + length;
+	}
+
 	private int readInput(ByteBuffer dst) throws IOException {
 		int n = channel.read(dst);
 		if (n > 0) {
 			input_total += n;
 			input_rate.add(n);
-			if (input_data != null && input_data.position() > 0)
-				if (input_data.get(0) == Message.PIECE)
-					blocks_input_total += n;
 		}
 		return n;
 	}
@@ -171,19 +231,40 @@ public final class BTSocket {
 			return;
 		try {
 			// When the Socket buffer is full no bytes are written.
-			writeOutput(output_prefix);
-			if (!output_prefix.hasRemaining()) {
-				writeOutput(output_data);
-				if (!output_data.hasRemaining())
-					output_data = null;
+			writeOutput();
+			while (output_first < output_count
+					&& !output_buffers[output_first].hasRemaining()) {
+				output_first++;
 			}
+			if (output_first < output_count)
+				return;
+			if (output_region != null) {
+				transferOutput(output_region);
+				if (output_region.hasRemaining())
+					return;
+				output_region = null;
+			}
+			Arrays.fill(output_buffers, 0, output_count, null);
+			output_first = 0;
+			output_count = 0;
 		} catch (IOException e) {
 			is_output_error = true;
 		}
 	}
 
-	private int writeOutput(ByteBuffer src) throws IOException {
-		int n = channel.write(src);
+	private long writeOutput() throws IOException {
+		long n = channel.write(output_buffers, output_first, output_count
+				- output_first);
+		if (n > 0) {
+			output_total += n;
+			output_rate.add(n);
+		}
+		return n;
+	}
+
+	private long transferOutput(FileRegion region) throws IOException {
+		// Zero-copy; accounted for like the buffered output.
+		long n = region.transferTo(channel);
 		if (n > 0) {
 			output_total += n;
 			output_rate.add(n);
@@ -192,37 +273,86 @@ public final class BTSocket {
 	}
 
 	public boolean hasPartialInputMesssage() {
-		return input_data != null && input_data.hasRemaining();
+		if (input_data != null)
+			return input_data.hasRemaining();
+		return receive.hasRemaining() && !hasReceivedFrame();
 	}
 
 	public boolean hasInputMessage() {
-		return input_data != null && !input_data.hasRemaining();
+		if (input_data != null)
+			return !input_data.hasRemaining();
+		return hasReceivedFrame();
+	}
+
+	public InputFrame peekInputMessage() {
+		// Returns a view of the next message, or null if there is none.
+		// Messages that aren't kept can be dispatched from the view and
+		// then skipped, without being copied.
+		if (!hasInputMessage())
+			return null;
+		if (input_data != null)
+			input_frame.set(input_data, 0, input_data.capacity());
+		else
+			input_frame.set(receive, receive.position() + 4,
+					receive.getInt(receive.position()));
+		return input_frame;
+	}
+
+	public void skipInputMessage() {
+		if (!hasInputMessage())
+			return;
+		if (input_data != null) {
+			input_data = null;
+		} else {
+			int length = receive.getInt();
+			if (length > 0 && receive.get(receive.position()) == Message.PIECE)
+				blocks_input_total += length;
+			receive.position(receive.position() + length);
+		}
+		last_input_at = System.nanoTime();
 	}
 
 	public Message takeInputMessage() {
 		if (!hasInputMessage())
 			return null;
 
-		Message m = Message.wrap(input_data);
-		input_prefix.rewind();
-		input_data.rewind();
-		input_data = null;
+		ByteBuffer data = input_data;
+		if (data != null) {
+			input_data = null;
+		} else {
+			int length = receive.getInt();
+			ByteBuffer frame = receive.duplicate();
+			frame.limit(frame.position() + length);
+			data = ByteBuffer.allocate(length);
+			data.put(frame);
+			receive.position(frame.limit());
+			if (length > 0 && data.get(0) == Message.PIECE)
+				blocks_input_total += length;
+		}
+		data.rewind();
 		last_input_at = System.nanoTime();
-		return m;
+		return Message.wrap(data);
 	}
 
 	public boolean hasOutputMessage() {
-		return output_data != null;
+		return output_count > 0;
 	}
 
-	public boolean setOutputMessage(Message m) {
-		if (hasOutputMessage() || m == null || is_output_error)
+	public boolean addOutputMessage(Message m) {
+		// Appends the message to the output batch. Returns false if the
+		// batch is full or closed; it's reopened once it has been sent.
+		if (m == null || is_output_error || output_region != null
+				|| output_count == output_buffers.length)
 			return false;
 
-		output_prefix.putInt(0, m.getLength());
-		output_prefix.rewind();
-		output_data = m.getData();
-		output_data.rewind();
+		ByteBuffer prefix = output_prefixes[output_count / 2];
+		prefix.putInt(0, m.getLength());
+		prefix.rewind();
+		ByteBuffer data = m.getData();
+		data.rewind();
+		output_buffers[output_count++] = prefix;
+		output_buffers[output_count++] = data;
+		output_region = m.getRegion();
 		last_output_at = System.nanoTime();
 		return true;
 	}
@@ -0,0 +1,161 @@
+package com.ndtorrent.client;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class BufferPool {
+	// Direct buffers in power of two size classes, shared by all torrents
+	// of a client. Released buffers are kept for reuse. The total size of
+	// the buffers, free or in use, never exceeds the capacity.
+
+	static final int MIN_CLASS_SHIFT = 14; // 16 KiB
+	static final int NUM_CLASSES = 31 - MIN_CLASS_SHIFT;
+
+	private final long capacity;
+
+	private long allocated;
+	private long in_use;
+	private int buffers_in_use;
+	private long rejected;
+
+	private List<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>(
+			NUM_CLASSES);
+
+	public BufferPool(long capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException(
+					"capacity must be greater than zero");
+
+		this.capacity = capacity;
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			free.add(new ArrayDeque<ByteBuffer>());
+		}
+	}
+
+	public static long maxCapacity() {
+		// Half of the direct memory that the JVM allows, so that the
+		// receive buffers and the temporary buffers of the JDK still fit.
+		// The limit is the heap size unless -XX:MaxDirectMemorySize is set.
+		long max = Runtime.getRuntime().maxMemory();
+		String option = "-XX:MaxDirectMemorySize=";
+		for (String arg : ManagementFactory.getRuntimeMXBean()
+				.getInputArguments()) {
+			if (arg.startsWith(option))
+				max = parseSize(arg.substring(option.length()), max);
+		}
+		return max / 2;
+	}
+
+	private static long parseSize(String value, long fallback) {
+		// E.g. 512m; returns the fallback if the value can't be parsed.
+		long unit = 1;
+		switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+		case 'k':
+			unit = 1024;
+			break;
+		case 'm':
+			unit = 1024 * 1024;
+			break;
+		case 'g':
+			unit = 1024 * 1024 * 1024;
+			break;
+		}
+		if (unit > 1)
+			value = value.substring(0, value.length() - 1);
+		try {
+			return Long.parseLong(value) * unit;
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	private static int sizeClass(int size) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+	}
+
+	private static int classSize(int size_class) {
+		return 1 << (size_class + MIN_CLASS_SHIFT);
+	}
+
+	public synchronized ByteBuffer allocate(int size) {
+		// Returns a buffer with position 0 and limit equal to size, or
+		// null if the capacity would be exceeded.
+		int c = sizeClass(size);
+		if (c >= NUM_CLASSES)
+			throw new IllegalArgumentException("size: " + size);
+
+		ByteBuffer buffer = free.get(c).pollFirst();
+		if (buffer == null) {
+			int length = classSize(c);
+			if (allocated + length > capacity)
+				trimFreeBuffers(allocated + length - capacity);
+			if (allocated + length > capacity) {
+				rejected++;
+				return null;
+			}
+			try {
+				buffer = ByteBuffer.allocateDirect(length);
+			} catch (OutOfMemoryError e) {
+				// The direct memory of the JVM is exhausted, e.g. by
+				// other buffers; the allocation fails like a full pool.
+				rejected++;
+				return null;
+			}
+			allocated += length;
+		}
+		in_use += buffer.capacity();
+		buffers_in_use++;
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	public synchronized void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		int c = sizeClass(buffer.capacity());
+		free.get(c).addFirst(buffer);
+		in_use -= buffer.capacity();
+		buffers_in_use--;
+	}
+
+	private void trimFreeBuffers(long amount) {
+		// Drops free buffers of other size classes; their native memory is
+		// reclaimed when they are garbage collected.
+		for (int c = NUM_CLASSES - 1; c >= 0 && amount > 0; c--) {
+			while (amount > 0 && !free.get(c).isEmpty()) {
+				int length = free.get(c).pollFirst().capacity();
+				allocated -= length;
+				amount -= length;
+			}
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getAllocatedBytes() {
+		// Free buffers included.
+		return allocated;
+	}
+
+	public synchronized long getUsedBytes() {
+		return in_use;
+	}
+
+	public synchronized int numBuffersInUse() {
+		return buffers_in_use;
+	}
+
+	public synchronized long numRejected() {
+		// Allocations that failed because the pool, or the direct memory
+		// of the JVM, was full.
+		return rejected;
+	}
+
+}
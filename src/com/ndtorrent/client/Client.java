@@ -1,20 +1,65 @@
 package com.ndtorrent.client;
 
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.ndtorrent.client.status.StatusObserver;
 
 public final class Client implements ClientInfo {
 
 	public static final int DEFAULT_PORT = 45000;
+	public static final long DEFAULT_STREAMING_RATE = 1024 * 1024;
+	public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_DISK_THREADS = 1;
+	public static final int DEFAULT_DISK_POOL_THREADS = 8;
+	public static final long DEFAULT_MEMORY_BUDGET = 256 * 1024 * 1024;
 
 	private String storage_location = "torrents";
 	private String id = "BTCLIENTID1234567890";
+	private StorageType storage_type = StorageType.FILE;
+	private boolean write_through;
+	private boolean zero_copy;
+	private long streaming_rate = DEFAULT_STREAMING_RATE;
+
+	private MemoryBudget write_cache_budget = new MemoryBudget(
+			DEFAULT_CACHE_SIZE);
+	private ReadCache read_cache = new ReadCache(DEFAULT_CACHE_SIZE);
+	private MemoryBudget memory_budget = new MemoryBudget(
+			DEFAULT_MEMORY_BUDGET);
+	private BufferPool buffer_pool = new BufferPool(
+			poolCapacity(DEFAULT_MEMORY_BUDGET));
+	private HashPool hash_pool = new HashPool(Runtime.getRuntime()
+			.availableProcessors());
+	private DiskScheduler disk_scheduler;
+	private ExecutorService disk_pool = newDiskPool(DEFAULT_DISK_POOL_THREADS);
+	private EventLoopGroup event_loops = new EventLoopGroup(Runtime
+			.getRuntime().availableProcessors());
 
 	private BTServerSocket server;
 	private Map<String, Peer> peers = new HashMap<String, Peer>();
 
+	private static ExecutorService newDiskPool(int nthreads) {
+		// Idle threads exit, so that a client without disk work holds none.
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(nthreads, nthreads,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "DISK-POOL-THREAD");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
 	public void setServerPort(int port) {
 		if (server != null)
 			server.close();
@@ -40,7 +85,7 @@ public final class Client implements ClientInfo {
 		if (server != null) {
 			server.addHandler(peer);
 		}
-		peer.start();
+		peer.start(event_loops.next());
 		return info_hash;
 	}
 
@@ -56,12 +101,17 @@ public final class Client implements ClientInfo {
 		}
 		for (Peer peer : peers.values()) {
 			try {
-				peer.join();
+				peer.awaitClose();
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
 		}
 		peers.clear();
+		event_loops.shutdown();
+		hash_pool.shutdown();
+		if (disk_scheduler != null)
+			disk_scheduler.shutdown();
+		disk_pool.shutdown();
 	}
 
 	@Override
@@ -79,6 +129,156 @@ public final class Client implements ClientInfo {
 		return storage_location;
 	}
 
+	@Override
+	public StorageType getStorageType() {
+		return storage_type;
+	}
+
+	public void setStorageType(StorageType type) {
+		// Affects torrents that are added afterwards.
+		storage_type = type;
+	}
+
+	@Override
+	public MemoryBudget getWriteCacheBudget() {
+		// Returns null if write caching is disabled.
+		return write_cache_budget;
+	}
+
+	public void setWriteCacheSize(long size) {
+		// Shared by all torrents, in bytes. Zero disables write caching.
+		// Affects torrents that are added afterwards.
+		write_cache_budget = size > 0 ? new MemoryBudget(size) : null;
+	}
+
+	@Override
+	public ReadCache getReadCache() {
+		// Returns null if read caching is disabled.
+		return read_cache;
+	}
+
+	public void setReadCacheSize(long size) {
+		// Shared by all torrents, in bytes. Zero disables read caching.
+		// Affects torrents that are added afterwards.
+		read_cache = size > 0 ? new ReadCache(size) : null;
+	}
+
+	@Override
+	public boolean useWriteThrough() {
+		return write_through;
+	}
+
+	public void setWriteThrough(boolean write_through) {
+		// Write blocks as they arrive instead of buffering whole pieces.
+		// Affects torrents that are added afterwards.
+		this.write_through = write_through;
+	}
+
+	@Override
+	public boolean useZeroCopy() {
+		return zero_copy;
+	}
+
+	public void setZeroCopy(boolean zero_copy) {
+		// Upload blocks straight from the files of FILE storage. Saves the
+		// copy through memory, but each block costs a transfer of its own,
+		// and the read cache and the coalescing of adjacent requests are
+		// bypassed. Off by default. Affects torrents that are added
+		// afterwards.
+		this.zero_copy = zero_copy;
+	}
+
+	@Override
+	public long getStreamingRate() {
+		return streaming_rate;
+	}
+
+	public void setStreamingRate(long rate) {
+		// Bytes per second that a stream is expected to consume. Piece
+		// deadlines ahead of a stream are derived from this rate.
+		if (rate <= 0)
+			throw new IllegalArgumentException("rate must be greater than zero");
+		streaming_rate = rate;
+	}
+
+	@Override
+	public HashPool getHashPool() {
+		// Pieces of all torrents are verified by this pool.
+		return hash_pool;
+	}
+
+	@Override
+	public DiskScheduler getDiskScheduler() {
+		// Disk reads and writes of all torrents are ordered by this
+		// scheduler. Returns null if disk scheduling is disabled.
+		return disk_scheduler;
+	}
+
+	public void setDiskSchedulerThreads(int nthreads) {
+		// Zero disables the scheduler, which is the default; disk work
+		// then runs unordered on the disk pool. The elevator order pays
+		// off on rotating disks, where DEFAULT_DISK_THREADS keeps it. On
+		// solid-state and multi-disk setups the pool is faster.
+		// Must be called before any torrent is added.
+		if (nthreads < 0)
+			throw new IllegalArgumentException("nthreads: " + nthreads);
+		if (!peers.isEmpty())
+			throw new IllegalStateException("torrents already added");
+		if (disk_scheduler != null)
+			disk_scheduler.shutdown();
+		disk_scheduler = nthreads > 0 ? new DiskScheduler(nthreads) : null;
+	}
+
+	@Override
+	public ExecutorService getDiskPool() {
+		// Disk work of all torrents that isn't ordered by the scheduler
+		// runs on this pool.
+		return disk_pool;
+	}
+
+	public void setMemoryBudget(long size) {
+		// Bytes of piece data that all torrents may hold in memory.
+		// Affects torrents that are added afterwards.
+		memory_budget = new MemoryBudget(size);
+		buffer_pool = new BufferPool(poolCapacity(size));
+	}
+
+	private static long poolCapacity(long budget) {
+		// The buffer pool gets twice the budget, since its buffers are
+		// rounded up to powers of two, so that the budget is usually
+		// reached first. It never gets more than the JVM's direct memory
+		// allows.
+		return Math.min(2 * budget, BufferPool.maxCapacity());
+	}
+
+	@Override
+	public MemoryBudget getMemoryBudget() {
+		// Pending pieces and writes of all torrents are bounded by this
+		// budget.
+		return memory_budget;
+	}
+
+	@Override
+	public BufferPool getBufferPool() {
+		// Piece buffers of all torrents are borrowed from this pool.
+		return buffer_pool;
+	}
+
+	public void setFilePriority(String info_hash, int file_index,
+			Priority priority) {
+		// Pieces that are already downloading are not affected.
+		Peer peer = peers.get(info_hash);
+		if (peer != null) {
+			peer.setFilePriority(file_index, priority);
+		}
+	}
+
+	public InputStream newInputStream(String info_hash, int file_index) {
+		// Returns null if the torrent hasn't been added.
+		Peer peer = peers.get(info_hash);
+		return peer != null ? peer.newInputStream(file_index) : null;
+	}
+
 	public void addStatusObserver(StatusObserver observer, String info_hash) {
 		Peer peer = peers.get(info_hash);
 		if (peer != null) {
@@ -1,5 +1,7 @@
 package com.ndtorrent.client;
 
+import java.util.concurrent.ExecutorService;
+
 public interface ClientInfo {
 
 	public String getID();
@@ -12,6 +14,28 @@ public interface ClientInfo {
 
 	public String getStorageLocation();
 
+	public StorageType getStorageType();
+
+	public MemoryBudget getWriteCacheBudget();
+
+	public ReadCache getReadCache();
+
+	public BufferPool getBufferPool();
+
+	public MemoryBudget getMemoryBudget();
+
+	public HashPool getHashPool();
+
+	public DiskScheduler getDiskScheduler();
+
+	public ExecutorService getDiskPool();
+
+	public boolean useWriteThrough();
+
+	public boolean useZeroCopy();
+
+	public long getStreamingRate();
+
 	// public int maxOutgoingConnections();
 
 	// public int maxIncomingConnections();
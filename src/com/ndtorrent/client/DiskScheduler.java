@@ -0,0 +1,172 @@
+package com.ndtorrent.client;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+public final class DiskScheduler {
+	// Disk operations of all torrents of a client, served in elevator
+	// order: by ascending (device, path, offset), starting after the last
+	// served operation and wrapping around at the end. Within a torrent,
+	// offset order is also file order. An operation that has waited longer
+	// than MAX_WAIT is served next, which bounds starvation.
+
+	static final long MAX_WAIT = (long) 500e6; // ns
+	static final int LATENCY_SAMPLES = 1024;
+
+	private final Thread[] workers;
+	private volatile boolean stop_requested;
+
+	// The same operations, in elevator and in arrival order. Served
+	// operations are removed lazily from the arrivals.
+	private final TreeSet<Operation> queue = new TreeSet<Operation>();
+	private final ArrayDeque<Operation> arrivals = new ArrayDeque<Operation>();
+	private Operation last_served;
+	private long sequence;
+
+	// Queue latencies of the recently served operations, in ns.
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private long served;
+	private long starved;
+
+	private static final class Operation implements Comparable<Operation> {
+		final String device;
+		final String path;
+		final long offset;
+		final long sequence;
+		final long enqueued = System.nanoTime();
+		final Runnable task;
+		boolean is_served;
+
+		Operation(String device, String path, long offset, long sequence,
+				Runnable task) {
+			this.device = device;
+			this.path = path;
+			this.offset = offset;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Operation other) {
+			int c = device.compareTo(other.device);
+			if (c == 0)
+				c = path.compareTo(other.path);
+			if (c == 0)
+				c = Long.compare(offset, other.offset);
+			if (c == 0)
+				c = Long.compare(sequence, other.sequence);
+			return c;
+		}
+	}
+
+	public DiskScheduler(int nthreads) {
+		// A single thread keeps the elevator order on a rotating disk;
+		// more threads overlap the operations of different devices.
+		workers = new Thread[nthreads];
+		for (int i = 0; i < nthreads; i++) {
+			workers[i] = new Thread("DISK-THREAD") {
+				@Override
+				public void run() {
+					serve();
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	public synchronized void submit(String device, String path, long offset,
+			Runnable task) {
+		// The device identifies the file system, the path the torrent
+		// location, and the offset is a torrent offset.
+		Operation op = new Operation(device, path, offset, sequence++, task);
+		queue.add(op);
+		arrivals.add(op);
+		notify();
+	}
+
+	private synchronized Operation take() throws InterruptedException {
+		while (queue.isEmpty()) {
+			if (stop_requested)
+				return null;
+			wait();
+		}
+
+		while (arrivals.peekFirst().is_served) {
+			arrivals.pollFirst();
+		}
+
+		long now = System.nanoTime();
+		Operation op = arrivals.peekFirst();
+		if (now - op.enqueued > MAX_WAIT) {
+			starved++;
+		} else {
+			op = last_served != null ? queue.higher(last_served) : null;
+			if (op == null)
+				op = queue.first();
+		}
+		queue.remove(op);
+		op.is_served = true;
+		last_served = op;
+
+		latencies[(int) (served % LATENCY_SAMPLES)] = now - op.enqueued;
+		served++;
+		return op;
+	}
+
+	private void serve() {
+		while (true) {
+			Operation op;
+			try {
+				op = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (op == null)
+				return;
+			// A failed task, even with an Error, doesn't stop the worker;
+			// the queue must still be drained.
+			try {
+				op.task.run();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void shutdown() {
+		// Operations that are already queued are served first.
+		synchronized (this) {
+			stop_requested = true;
+			notifyAll();
+		}
+	}
+
+	public synchronized int getQueueLength() {
+		return queue.size();
+	}
+
+	public synchronized long numServed() {
+		return served;
+	}
+
+	public synchronized long numStarved() {
+		// Operations that were served out of elevator order because they
+		// waited for too long.
+		return starved;
+	}
+
+	public synchronized long getLatencyPercentile(double percentile) {
+		// Queue latency (ns) of the recently served operations, for a
+		// percentile in [0, 100].
+		int n = (int) Math.min(served, LATENCY_SAMPLES);
+		if (n == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * n) - 1;
+		return sorted[Math.max(0, Math.min(index, n - 1))];
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class EventLoop extends Thread {
+	// A reactor: one thread and one selector for the connections of all
+	// the torrents (Peers) that are assigned to it. A Peer runs when one of
+	// its keys is selected, and at least once per TICK. The state of a
+	// Peer and its Torrent is confined to the thread of its loop.
+
+	static final long TICK = (long) 100e6; // ns
+
+	private final Selector selector;
+	private final Executor blocking; // work that waits, outside the loop
+	private volatile boolean stop_requested;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final List<Peer> peers = new ArrayList<Peer>();
+	private final AtomicInteger num_peers = new AtomicInteger();
+
+	public EventLoop(Executor blocking) throws IOException {
+		super("EVENT-LOOP-THREAD");
+		setDaemon(true);
+		selector = Selector.open();
+		this.blocking = blocking;
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	public void execute(Runnable task) {
+		// Runs the task on the loop thread, as soon as possible.
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	void executeBlocking(Runnable task) {
+		// Runs a task that may block, e.g. the closing of a torrent, on a
+		// thread outside the loop.
+		blocking.execute(task);
+	}
+
+	void addPeer(final Peer peer) {
+		// The Peer joins the loop after its torrent has been opened.
+		num_peers.incrementAndGet();
+		executeBlocking(new Runnable() {
+			@Override
+			public void run() {
+				peer.open();
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						peers.add(peer);
+					}
+				});
+			}
+		});
+	}
+
+	public int numPeers() {
+		return num_peers.get();
+	}
+
+	public void shutdown() {
+		// The Peers must have been closed.
+		stop_requested = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (!stop_requested) {
+			try {
+				selector.select(Math.max(1, nextTickDelay() / 1000000));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			for (SelectionKey key : selector.selectedKeys()) {
+				Peer.Handle handle = (Peer.Handle) key.attachment();
+				handle.select(key);
+			}
+			selector.selectedKeys().clear();
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+			}
+
+			long now = System.nanoTime();
+			Iterator<Peer> iter = peers.iterator();
+			while (iter.hasNext()) {
+				Peer peer = iter.next();
+				if (!peer.hasSelectedKeys() && !peer.isClosing()
+						&& now - peer.lastRunAt() < TICK)
+					continue;
+				if (!runPeer(peer, now)) {
+					iter.remove();
+					num_peers.decrementAndGet();
+				}
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private boolean runPeer(Peer peer, long now) {
+		// A failure closes only the Peer that caused it; the other Peers
+		// of the loop keep running. Errors count as failures too, e.g. an
+		// OutOfMemoryError, which would otherwise end the loop thread.
+		try {
+			return peer.runOnce(now);
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+		try {
+			peer.abort();
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	private long nextTickDelay() {
+		long now = System.nanoTime();
+		long delay = TICK;
+		for (Peer peer : peers) {
+			delay = Math.min(delay, peer.lastRunAt() + TICK - now);
+		}
+		return delay;
+	}
+
+}
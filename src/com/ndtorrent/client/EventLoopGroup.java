@@ -0,0 +1,57 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public final class EventLoopGroup {
+	// The event loops of a client. Each torrent is assigned to the loop
+	// that has the fewest torrents, together with all of its connections.
+	// Torrents are opened and closed by threads of their own, outside the
+	// loops, because that work waits for the disk.
+
+	private final EventLoop[] loops;
+	private final ExecutorService blocking;
+
+	public EventLoopGroup(int nthreads) {
+		blocking = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TORRENT-OPEN-CLOSE-THREAD");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		loops = new EventLoop[nthreads];
+		for (int i = 0; i < nthreads; i++) {
+			try {
+				loops[i] = new EventLoop(blocking);
+			} catch (IOException e) {
+				throw new IllegalStateException("cannot open a selector", e);
+			}
+			loops[i].start();
+		}
+	}
+
+	public synchronized EventLoop next() {
+		EventLoop best = loops[0];
+		for (EventLoop loop : loops) {
+			if (loop.numPeers() < best.numPeers())
+				best = loop;
+		}
+		return best;
+	}
+
+	public int numLoops() {
+		return loops.length;
+	}
+
+	public void shutdown() {
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+		blocking.shutdown();
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.ndtorrent.client;
+
+public final class ExtentTable {
+	// The file segments (extents) of the torrent, in torrent order, built
+	// once from the file list. A file that spans multiple pieces is split
+	// at the piece boundaries, so the extents of piece i are the range
+	// [firstExtent(i), firstExtent(i + 1)). Zero-length files have no
+	// extents. All lookups are done on primitive arrays, without
+	// allocation.
+
+	private final int piece_length;
+	private final int num_pieces;
+
+	private final int[] piece_extent; // first extent of each piece
+	private final int[] extent_file; // index into the file list
+	private final long[] extent_offset; // torrent offset
+	private final int[] extent_length;
+
+	// The pieces [first, end) that each file overlaps.
+	private final int[] file_first_piece;
+	private final int[] file_end_piece;
+
+	public ExtentTable(BTFile[] files, int piece_length) {
+		this.piece_length = piece_length;
+
+		long total_length = 0;
+		int nextents = 0;
+		for (BTFile f : files) {
+			if (f.getLength() == 0)
+				continue;
+			total_length += f.getLength();
+			nextents += 1 + (int) ((f.getOffset() + f.getLength() - 1)
+					/ piece_length - f.getOffset() / piece_length);
+		}
+		num_pieces = (int) ((total_length + piece_length - 1) / piece_length);
+
+		piece_extent = new int[num_pieces + 1];
+		extent_file = new int[nextents];
+		extent_offset = new long[nextents];
+		extent_length = new int[nextents];
+		file_first_piece = new int[files.length];
+		file_end_piece = new int[files.length];
+
+		int e = 0;
+		int piece = 0;
+		for (int j = 0; j < files.length; j++) {
+			BTFile f = files[j];
+			long offset = f.getOffset();
+			long end = offset + f.getLength();
+			file_first_piece[j] = (int) (offset / piece_length);
+			file_end_piece[j] = f.getLength() == 0 ? file_first_piece[j]
+					: (int) ((end - 1) / piece_length) + 1;
+			while (offset < end) {
+				int index = (int) (offset / piece_length);
+				while (piece <= index) {
+					piece_extent[piece++] = e;
+				}
+				long piece_end = (long) (index + 1) * piece_length;
+				extent_file[e] = j;
+				extent_offset[e] = offset;
+				extent_length[e] = (int) (Math.min(end, piece_end) - offset);
+				offset += extent_length[e];
+				e++;
+			}
+		}
+		while (piece <= num_pieces) {
+			piece_extent[piece++] = e;
+		}
+	}
+
+	public int numPieces() {
+		return num_pieces;
+	}
+
+	public int numExtents() {
+		return extent_file.length;
+	}
+
+	public int firstExtent(int piece) {
+		return piece_extent[piece];
+	}
+
+	public int findExtent(long offset) {
+		// Index of the extent that contains the offset, or numExtents() if
+		// the offset is past the end of the torrent. The search is limited
+		// to the extents of one piece, which are usually one or two.
+		int index = (int) (offset / piece_length);
+		if (index >= num_pieces)
+			return extent_file.length;
+		int low = piece_extent[index];
+		int high = piece_extent[index + 1] - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (extent_offset[middle] <= offset)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	public int getFile(int extent) {
+		return extent_file[extent];
+	}
+
+	public long getOffset(int extent) {
+		return extent_offset[extent];
+	}
+
+	public int getLength(int extent) {
+		return extent_length[extent];
+	}
+
+	public long getEnd(int extent) {
+		return extent_offset[extent] + extent_length[extent];
+	}
+
+	public int getFirstPiece(int file) {
+		return file_first_piece[file];
+	}
+
+	public int getEndPiece(int file) {
+		// Equal to the first piece for zero-length files.
+		return file_end_piece[file];
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public final class FileRegion {
+	// A range of torrent data, as file segments, that is transferred to a
+	// channel without passing through the heap (FileChannel.transferTo,
+	// which uses sendfile where available). The segments come from the
+	// extent table of the torrent, and the region keeps track of the bytes
+	// that have been transferred.
+
+	private final BTFile[] files;
+	private final ExtentTable extents;
+	private final long length;
+
+	private int extent; // containing the position
+	private long position; // torrent offset
+	private long remaining;
+
+	FileRegion(BTFile[] files, ExtentTable extents, int extent, long offset,
+			long length) {
+		this.files = files;
+		this.extents = extents;
+		this.extent = extent;
+		this.position = offset;
+		this.length = length;
+		remaining = length;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public boolean hasRemaining() {
+		return remaining > 0;
+	}
+
+	public long transferTo(WritableByteChannel target) throws IOException {
+		// Transfers as many bytes as the target accepts without blocking.
+		// Returns the number of bytes transferred.
+		long total = 0;
+		while (remaining > 0) {
+			BTFile f = files[extents.getFile(extent)];
+			FileChannel channel = f.getChannel();
+			if (channel == null)
+				throw new IOException("file closed: " + f.getName());
+			long count = Math.min(extents.getEnd(extent) - position, remaining);
+			long n = channel.transferTo(position - f.getOffset(), count,
+					target);
+			if (n <= 0)
+				break;
+			total += n;
+			position += n;
+			remaining -= n;
+			if (n < count)
+				break;
+			extent++;
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class FileStorage implements StorageBackend {
+	// Maps torrent offsets to the BTFiles through the extent table, so an
+	// operation looks up its first extent and then issues one vectored call
+	// per extent.
+
+	protected final BTFile[] files;
+	protected final String parent_path;
+	protected final ExtentTable extents;
+
+	private static final byte[] ZEROS = new byte[4096];
+
+	public FileStorage(BTFile[] files, String parent_path,
+			ExtentTable extents) {
+		this.files = files;
+		this.parent_path = parent_path;
+		this.extents = extents;
+	}
+
+	@Override
+	public boolean open() throws IOException {
+		// Skipped files are created on first write, if their priority
+		// changes. Pad files are never created.
+		boolean existing_data = false;
+		for (BTFile f : files) {
+			if (!f.isSkipped() && !f.isPadding())
+				existing_data |= f.createFileAndPath(parent_path);
+		}
+		return existing_data;
+	}
+
+	@Override
+	public long read(long offset, ByteBuffer[] dsts) throws IOException {
+		// A file may be read past the end of an extent, in which case the
+		// extents that have been covered are skipped. Pad files read as
+		// zeros.
+		ByteBuffer last = dsts[dsts.length - 1];
+		long total = 0;
+		int n_extents = extents.numExtents();
+		for (int e = extents.findExtent(offset); e < n_extents; e++) {
+			long position = offset + total;
+			if (extents.getEnd(e) <= position)
+				continue;
+			BTFile f = files[extents.getFile(e)];
+			long n;
+			if (f.isPadding()) {
+				n = skip(dsts, extents.getEnd(e) - position, true);
+			} else {
+				if (!f.isOpen())
+					throw new IOException("file not created: " + f.getName());
+				n = f.read(dsts, position - f.getOffset());
+			}
+			if (n > 0)
+				total += n;
+			if (!last.hasRemaining())
+				return total;
+		}
+		return total;
+	}
+
+	@Override
+	public long write(long offset, ByteBuffer[] srcs) throws IOException {
+		// Writes to pad files are dropped.
+		ByteBuffer last = srcs[srcs.length - 1];
+		long total = 0;
+		int n_extents = extents.numExtents();
+		for (int e = extents.findExtent(offset); e < n_extents; e++) {
+			long position = offset + total;
+			if (extents.getEnd(e) <= position)
+				continue;
+			BTFile f = files[extents.getFile(e)];
+			long n;
+			if (f.isPadding()) {
+				n = skip(srcs, extents.getEnd(e) - position, false);
+			} else {
+				synchronized (f) {
+					if (!f.isOpen())
+						f.createFileAndPath(parent_path);
+				}
+				n = f.write(srcs, position - f.getOffset());
+			}
+			if (n > 0)
+				total += n;
+			if (!last.hasRemaining())
+				return total;
+		}
+		return total;
+	}
+
+	static long skip(ByteBuffer[] buffers, long count, boolean zero_fill) {
+		// Advances the buffers by up to count bytes, filling them with
+		// zeros if requested. Returns the number of bytes skipped.
+		long total = 0;
+		for (ByteBuffer b : buffers) {
+			while (b.hasRemaining() && total < count) {
+				int n = (int) Math.min(Math.min(b.remaining(), count - total),
+						ZEROS.length);
+				if (zero_fill)
+					b.put(ZEROS, 0, n);
+				else
+					b.position(b.position() + n);
+				total += n;
+			}
+			if (total == count)
+				break;
+		}
+		return total;
+	}
+
+	public FileRegion getRegion(long offset, int length) {
+		// The file segments of the given range, for zero-copy transfers.
+		// Returns null if a file isn't open, which includes pad files.
+		int first = extents.findExtent(offset);
+		long end = offset + length;
+		for (int e = first; e < extents.numExtents()
+				&& extents.getOffset(e) < end; e++) {
+			if (!files[extents.getFile(e)].isOpen())
+				return null;
+		}
+		return new FileRegion(files, extents, first, offset, length);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		for (BTFile f : files) {
+			if (f.isOpen())
+				f.force();
+		}
+	}
+
+	@Override
+	public void close() {
+		for (BTFile f : files) {
+			if (f.isOpen())
+				f.close();
+		}
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return true;
+	}
+
+}
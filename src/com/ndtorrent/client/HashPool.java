@@ -0,0 +1,84 @@
+package com.ndtorrent.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class HashPool {
+	// Piece verification threads shared by all torrents of a client.
+	// The queue is bounded; when it's full, tasks are refused, and the
+	// submitting torrent keeps its pieces until they are accepted. The
+	// network threads never hash.
+
+	static final int MAX_QUEUED = 64;
+
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong hashed_bytes = new AtomicLong();
+	private final AtomicLong hashed_pieces = new AtomicLong();
+	private final AtomicLong busy_time = new AtomicLong();
+
+	public HashPool(int nthreads) {
+		executor = new ThreadPoolExecutor(nthreads, nthreads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						MAX_QUEUED), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "HASH-THREAD");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public boolean submit(final Runnable task, final long nbytes) {
+		// The nbytes is the amount of data the task hashes. Returns false,
+		// and doesn't run the task, if the queue is full or the pool has
+		// been shut down.
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.nanoTime();
+					task.run();
+					busy_time.addAndGet(System.nanoTime() - start);
+					hashed_bytes.addAndGet(nbytes);
+					hashed_pieces.incrementAndGet();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int numActiveThreads() {
+		return executor.getActiveCount();
+	}
+
+	public long getHashedBytes() {
+		return hashed_bytes.get();
+	}
+
+	public long numHashedPieces() {
+		return hashed_pieces.get();
+	}
+
+	public double getThroughput() {
+		// Bytes hashed per second of work, for a single thread.
+		long time = busy_time.get();
+		return time > 0 ? hashed_bytes.get() * 1e9 / time : 0;
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+
+public final class InputFrame {
+	// A view of the next received message, <ID><Payload>, that lies in
+	// the receive buffer of a BTSocket or in the buffer of a long message.
+	// The socket reuses the same view for every message, which is valid
+	// until the message is taken or skipped.
+
+	private ByteBuffer buffer;
+	private int start; // position of the ID
+	private int length;
+
+	void set(ByteBuffer buffer, int start, int length) {
+		this.buffer = buffer;
+		this.start = start;
+		this.length = length;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public byte getID() {
+		// Returns -1 for keep-alive messages.
+		return length == 0 ? -1 : buffer.get(start);
+	}
+
+	public int getInt(int offset) {
+		// The offset is relative to the ID, e.g. 1 for the piece index.
+		return buffer.getInt(start + offset);
+	}
+
+	public ByteBuffer getPayload(int offset) {
+		// The bytes of the message from the offset on, without a copy.
+		ByteBuffer view = buffer.duplicate();
+		view.limit(start + length);
+		view.position(start + offset);
+		return view;
+	}
+
+}
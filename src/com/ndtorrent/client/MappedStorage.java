@@ -0,0 +1,22 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+
+public final class MappedStorage extends FileStorage {
+	// Same layout as FileStorage, but the files are memory-mapped, so that
+	// reads and writes are plain memory copies into the page cache.
+
+	public MappedStorage(BTFile[] files, String parent_path,
+			ExtentTable extents) {
+		super(files, parent_path, extents);
+	}
+
+	@Override
+	public boolean open() throws IOException {
+		for (BTFile f : files) {
+			f.setMemoryMapped(true);
+		}
+		return super.open();
+	}
+
+}
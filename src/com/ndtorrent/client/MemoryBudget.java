@@ -0,0 +1,92 @@
+package com.ndtorrent.client;
+
+public final class MemoryBudget {
+	// Bytes held by the pieces of all torrents of a client, from the time
+	// they are registered until their data is written, and by the blocks
+	// that wait to be written through. When the budget is exceeded, no
+	// more pieces are registered, but the partial ones are completed.
+	// The write backlog is the part of the reserved bytes that is complete
+	// and waits only for the disk; reading from the network pauses while
+	// it fills the budget, since it drains on its own. The write caches of
+	// the torrents share a budget of their own.
+
+	private final long capacity;
+
+	private long used;
+	private long backlog;
+	private long peak;
+	private long rejected;
+
+	public MemoryBudget(long capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException(
+					"capacity must be greater than zero");
+
+		this.capacity = capacity;
+	}
+
+	public synchronized boolean reserve(long nbytes) {
+		// Returns false, and reserves nothing, if the budget would be
+		// exceeded.
+		if (used + nbytes > capacity) {
+			rejected++;
+			return false;
+		}
+		add(nbytes);
+		return true;
+	}
+
+	public synchronized void forceReserve(long nbytes) {
+		// For data that has already been received and can't be refused.
+		add(nbytes);
+	}
+
+	private void add(long nbytes) {
+		used += nbytes;
+		if (used > peak)
+			peak = used;
+	}
+
+	public synchronized void release(long nbytes) {
+		used -= nbytes;
+	}
+
+	public synchronized boolean isExceeded() {
+		return used >= capacity;
+	}
+
+	public synchronized void addBacklog(long nbytes) {
+		// The bytes must already be reserved.
+		backlog += nbytes;
+	}
+
+	public synchronized void removeBacklog(long nbytes) {
+		backlog -= nbytes;
+	}
+
+	public synchronized boolean isBacklogExceeded() {
+		return backlog >= capacity;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+
+	public synchronized long getBacklogBytes() {
+		return backlog;
+	}
+
+	public synchronized long getPeakBytes() {
+		return peak;
+	}
+
+	public synchronized long numRejected() {
+		// Reservations that failed because the budget was exceeded.
+		return rejected;
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+
+public final class MemoryStorage implements StorageBackend {
+	// Keeps the whole torrent in memory, in chunks that are allocated on
+	// first write. Unwritten regions read as zeros. Useful to measure the
+	// network and piece selection code without disk noise.
+
+	static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+	private final long length;
+	private ByteBuffer[] chunks;
+
+	public MemoryStorage(long length) {
+		this.length = length;
+	}
+
+	@Override
+	public boolean open() {
+		chunks = new ByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+		return false;
+	}
+
+	@Override
+	public long read(long offset, ByteBuffer[] dsts) {
+		return transfer(offset, dsts, false);
+	}
+
+	@Override
+	public long write(long offset, ByteBuffer[] srcs) {
+		return transfer(offset, srcs, true);
+	}
+
+	private long transfer(long offset, ByteBuffer[] buffers, boolean to_memory) {
+		long total = 0;
+		for (ByteBuffer bb : buffers) {
+			while (bb.hasRemaining() && offset < length) {
+				int index = (int) (offset / CHUNK_SIZE);
+				int chunk_offset = (int) (offset % CHUNK_SIZE);
+				int count = (int) Math.min(bb.remaining(),
+						Math.min(CHUNK_SIZE - chunk_offset, length - offset));
+				ByteBuffer chunk = getChunk(index, to_memory);
+				if (to_memory) {
+					ByteBuffer part = bb.duplicate();
+					part.limit(part.position() + count);
+					chunk.position(chunk_offset);
+					chunk.put(part);
+					bb.position(part.position());
+				} else if (chunk == null) {
+					for (int i = 0; i < count; i++) {
+						bb.put((byte) 0);
+					}
+				} else {
+					chunk.limit(chunk_offset + count);
+					chunk.position(chunk_offset);
+					bb.put(chunk);
+				}
+				offset += count;
+				total += count;
+			}
+		}
+		return total;
+	}
+
+	private synchronized ByteBuffer getChunk(int index, boolean allocate) {
+		// Returns a private view of the chunk, or null if the chunk is
+		// missing and allocate is false.
+		if (chunks[index] == null) {
+			if (!allocate)
+				return null;
+			long size = Math.min(CHUNK_SIZE, length - (long) index * CHUNK_SIZE);
+			chunks[index] = ByteBuffer.allocate((int) size);
+		}
+		return chunks[index].duplicate();
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+		chunks = null;
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return false;
+	}
+
+}
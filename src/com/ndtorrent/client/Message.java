@@ -17,7 +17,12 @@ public final class Message {
 	private ByteBuffer data; // <ID><Payload>
 	private long timestamp;
 
+	// The block data of a PIECE message that is sent from the files. The
+	// buffer holds only the ID, index and offset.
+	private FileRegion region;
+
 	private volatile boolean is_prepared = true;
+	private volatile boolean is_dropped;
 
 	private Message(ByteBuffer data) {
 		this.data = data;
@@ -44,7 +49,12 @@ public final class Message {
 	}
 
 	public int getLength() {
-		return data.capacity();
+		return data.capacity() + (region != null ? (int) region.length() : 0);
+	}
+
+	public FileRegion getRegion() {
+		// Returns null unless the block data is sent from the files.
+		return region;
 	}
 
 	public int getPayloadLength() {
@@ -83,10 +93,24 @@ public final class Message {
 		this.is_prepared = is_prepared;
 	}
 
+	public boolean isDropped() {
+		return is_dropped;
+	}
+
+	public void drop() {
+		// The preparation has failed, e.g. the block data couldn't be
+		// read. The message is discarded instead of being sent.
+		is_dropped = true;
+	}
+
 	public boolean sameBlockRegion(Message other) {
-		return getPieceIndex() == other.getPieceIndex()
-				&& getBlockBegin() == other.getBlockBegin()
-				&& getBlockLength() == other.getBlockLength();
+		return isBlockRegion(other.getPieceIndex(), other.getBlockBegin(),
+				other.getBlockLength());
+	}
+
+	public boolean isBlockRegion(int index, int begin, int length) {
+		return getPieceIndex() == index && getBlockBegin() == begin
+				&& getBlockLength() == length;
 	}
 
 	public boolean isBlockRequest() {
@@ -174,6 +198,18 @@ public final class Message {
 		return new Message(data);
 	}
 
+	public static Message newBlock(int index, int offset, FileRegion region) {
+		// The block data is transferred from the files when the message
+		// is sent.
+		ByteBuffer data = ByteBuffer.allocate(1 + 2 * 4);
+		data.put(PIECE);
+		data.putInt(index);
+		data.putInt(offset);
+		Message m = new Message(data);
+		m.region = region;
+		return m;
+	}
+
 	public static Message newHavePiece(int index) {
 		ByteBuffer data = ByteBuffer.allocate(1 + 4);
 		data.put(HAVE);
@@ -1,12 +1,12 @@
 package com.ndtorrent.client;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -23,6 +23,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 
 import com.ndtorrent.client.status.ConnectionInfo;
 import com.ndtorrent.client.status.PieceInfo;
@@ -32,20 +33,39 @@ import com.ndtorrent.client.status.TrackerInfo;
 import com.ndtorrent.client.tracker.Event;
 import com.ndtorrent.client.tracker.Session;
 
-public final class Peer extends Thread {
+public final class Peer {
 	static final int MAX_CHANNELS = 80;
 	static final long SECOND = (long) 1e9;
 
+	// The stream window holds the pieces whose deadlines are within the
+	// horizon, but no less than the minimum number of pieces.
+	static final long STREAM_HORIZON = 20 * SECOND;
+	static final int MIN_STREAM_WINDOW = 2;
+
 	private volatile boolean stop_requested;
+	private boolean is_aborted; // by the loop
+	private CountDownLatch closed = new CountDownLatch(1);
 
 	private MetaInfo meta;
 	private Torrent torrent;
 	private ClientInfo client_info;
 	private Socket socket; // reusable address for outgoing connections
-	private Selector channel_selector;
-	private Selector socket_selector;
+
+	// The Peer runs on an event loop, which it shares with other Peers.
+	// Its keys in the selector of the loop are kept apart: sockets in
+	// handshake, and channels. The keys that were selected are handed over
+	// by the loop before each run.
+	private EventLoop loop;
+	private List<SelectionKey> socket_keys = new ArrayList<SelectionKey>();
+	private List<SelectionKey> channel_keys = new ArrayList<SelectionKey>();
+	private List<SelectionKey> selected_socket_keys = new ArrayList<SelectionKey>();
+	private List<SelectionKey> selected_channel_keys = new ArrayList<SelectionKey>();
+	private long last_run_at;
+	private long last_time; // of the operations performed once per second
 
 	private Queue<BTSocket> pending = new ConcurrentLinkedQueue<BTSocket>();
+	// Operations submitted by other threads, run on the peer thread.
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
 	private List<PeerChannel> channels = new LinkedList<PeerChannel>();
 	private List<Session> sessions = new ArrayList<Session>();
 	private Map<String, Long> updated_sessions = new HashMap<String, Long>();
@@ -60,12 +80,23 @@ public final class Peer extends Thread {
 	private long eta;
 	private long eta_timeout;
 
-	public Peer(ClientInfo client_info, MetaInfo meta_info) {
-		super("PEER-THREAD");
+	// Next periodic save of the fast-resume record.
+	private long resume_timeout;
 
+	public Peer(ClientInfo client_info, MetaInfo meta_info) {
 		this.client_info = client_info;
 		this.meta = meta_info;
 		torrent = new Torrent(meta_info, client_info.getStorageLocation());
+		torrent.setStorageType(client_info.getStorageType());
+		torrent.setWriteCacheBudget(client_info.getWriteCacheBudget());
+		torrent.setReadCache(client_info.getReadCache());
+		torrent.setBufferPool(client_info.getBufferPool());
+		torrent.setMemoryBudget(client_info.getMemoryBudget());
+		torrent.setWriteThrough(client_info.useWriteThrough());
+		torrent.setZeroCopy(client_info.useZeroCopy());
+		torrent.setHashPool(client_info.getHashPool());
+		torrent.setDiskExecutor(client_info.getDiskPool());
+		torrent.setDiskScheduler(client_info.getDiskScheduler());
 
 		String announce = meta.getAnnounce();
 		List<String> trackers = meta.getAnnounceList();
@@ -80,81 +111,187 @@ public final class Peer extends Thread {
 				client_info, meta.getInfoHash()));
 	}
 
+	public void start(EventLoop loop) {
+		// The torrent is opened outside the loop.
+		this.loop = loop;
+		loop.addPeer(this);
+	}
+
 	public void close() {
 		stop_requested = true;
+		if (loop != null)
+			loop.getSelector().wakeup();
+	}
+
+	public void awaitClose() throws InterruptedException {
+		// Waits until the connections and the torrent have been closed.
+		closed.await();
+	}
+
+	final class Handle {
+		// The attachment of a key: its socket or channel, and the Peer
+		// that owns it.
+		final Object target;
+
+		Handle(Object target) {
+			this.target = target;
+		}
+
+		void select(SelectionKey key) {
+			if (target instanceof PeerChannel)
+				selected_channel_keys.add(key);
+			else
+				selected_socket_keys.add(key);
+		}
+	}
+
+	private static Object target(SelectionKey key) {
+		return ((Handle) key.attachment()).target;
 	}
 
-	@Override
-	public void run() {
+	void abort() {
+		// Called by the loop, also when runOnce() has failed. The Peer is
+		// closed even if its state is inconsistent. The connections are
+		// closed on the loop, and the torrent outside of it, since it
+		// waits for the pending disk work. The Peer has left the loop by
+		// then.
+		stop_requested = true;
+		if (is_aborted)
+			return;
+		is_aborted = true;
+		try {
+			closeConnections();
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+		loop.executeBlocking(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					torrent.close();
+				} finally {
+					closed.countDown();
+				}
+			}
+		});
+	}
+
+	boolean hasSelectedKeys() {
+		return !selected_socket_keys.isEmpty()
+				|| !selected_channel_keys.isEmpty();
+	}
+
+	boolean isClosing() {
+		return stop_requested;
+	}
+
+	long lastRunAt() {
+		return last_run_at;
+	}
+
+	public void setFilePriority(final int file_index, final Priority priority) {
+		if (priority == null)
+			throw new NullPointerException();
+
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				torrent.setFilePriority(file_index, priority);
+				updateAmInterestedState();
+			}
+		});
+	}
+
+	public InputStream newInputStream(int file_index) {
+		// A skipped file is unskipped, otherwise the stream would wait
+		// forever.
+		if (torrent.getFilePriority(file_index) == Priority.SKIP)
+			setFilePriority(file_index, Priority.NORMAL);
+		return torrent.newInputStream(file_index);
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	void open() {
+		// Called outside the loop, before the Peer joins it.
 		try {
 			socket = new Socket();
 			socket.setReuseAddress(true);
 			socket.bind(null);
-			channel_selector = Selector.open();
-			socket_selector = Selector.open();
 			torrent.open();
 		} catch (IOException e) {
 			e.printStackTrace();
 			stop_requested = true;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			stop_requested = true;
 		}
+	}
 
-		long last_time = 0;
+	boolean runOnce(long now) {
+		// Called by the loop, after the selection. Returns false when the
+		// Peer has closed.
+		if (stop_requested) {
+			abort();
+			return false;
+		}
+		last_run_at = now;
 
-		while (!stop_requested) {
-			try {
-				// High priority //
-				removeBrokenSockets();
-				socket_selector.selectedKeys().clear();
-				socket_selector.selectNow();
-				processConnectOperations();
-				processHandshakeMessages();
-
-				removeBrokenChannels();
-				configureChannelKeys();
-				channel_selector.selectedKeys().clear();
-				channel_selector.select(100);
-
-				processIncomingMessages();
-				processOutgoingMessages();
-				requestMoreBlocks();
-				// cancelEndGameRequests();
-				requestEndGameBlocks();
-
-				// Low priority //
-				// Operations that are performed once per second.
-				long now = System.nanoTime();
-				if (now - last_time < SECOND)
-					continue;
+		try {
+			// High priority //
+			removeBrokenSockets();
+			processConnectOperations();
+			processHandshakeMessages();
 
-				last_time = now;
+			removeBrokenChannels();
+			configureChannelKeys();
 
-				registerPendingSockets();
-				removeFellowSeeders();
-				cancelDelayedRequests();
-				restoreBrokenRequests();
-				// restoreRejectedPieces();
-				updateAmInterestedState();
-				choking();
-				advertiseAvailablePieces();
-				keepConnectionsAlive();
+			processIncomingMessages();
+			torrent.processVerifiedPieces();
+			withdrawLostPieces(torrent.processDiskCompletions());
+			runPendingTasks();
+			processOutgoingMessages();
+			requestMoreBlocks();
+			// cancelEndGameRequests();
+			requestEndGameBlocks();
 
-				updateTrackerSessions();
-				updateKnownAddresses();
-				spawnOutgoingConnections();
+			// Low priority //
+			// Operations that are performed once per second.
+			if (now - last_time < SECOND)
+				return true;
 
-				notifyStatusObservers();
+			last_time = now;
 
-				rollTotals();
+			registerPendingSockets();
+			removeFellowSeeders();
+			cancelDelayedRequests();
+			restoreBrokenRequests();
+			// restoreRejectedPieces();
+			updateAmInterestedState();
+			choking();
+			advertiseAvailablePieces();
+			keepConnectionsAlive();
+			torrent.flushWriteCache();
+			saveResumeData();
 
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+			updateTrackerSessions();
+			updateKnownAddresses();
+			spawnOutgoingConnections();
 
-		closeConnections();
+			notifyStatusObservers();
 
-		torrent.close();
+			rollTotals();
 
+		} finally {
+			selected_socket_keys.clear();
+			selected_channel_keys.clear();
+		}
+		return true;
 	}
 
 	private void updateTrackerSessions() {
@@ -195,8 +332,9 @@ public final class Peer extends Thread {
 	private void registerPendingSockets() {
 		for (BTSocket socket : pending) {
 			try {
-				socket.register(socket_selector, SelectionKey.OP_CONNECT
-						| SelectionKey.OP_READ | SelectionKey.OP_WRITE, socket);
+				socket_keys.add(socket.register(loop.getSelector(),
+						SelectionKey.OP_CONNECT | SelectionKey.OP_READ
+								| SelectionKey.OP_WRITE, new Handle(socket)));
 			} catch (ClosedChannelException e) {
 			}
 		}
@@ -204,19 +342,19 @@ public final class Peer extends Thread {
 	}
 
 	private void processConnectOperations() {
-		for (SelectionKey key : socket_selector.selectedKeys()) {
+		for (SelectionKey key : selected_socket_keys) {
 			if (!key.isValid() || !key.isConnectable())
 				continue;
-			BTSocket socket = (BTSocket) key.attachment();
+			BTSocket socket = (BTSocket) target(key);
 			socket.finishConnect();
 		}
 	}
 
 	private void processHandshakeMessages() {
-		for (SelectionKey key : socket_selector.selectedKeys()) {
+		for (SelectionKey key : selected_socket_keys) {
 			if (!key.isValid() || key.isConnectable())
 				continue;
-			BTSocket socket = (BTSocket) key.attachment();
+			BTSocket socket = (BTSocket) target(key);
 			if (key.isReadable() && socket.hasInputHandshake()) {
 				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
 			}
@@ -229,9 +367,11 @@ public final class Peer extends Thread {
 			}
 			socket.processHandshakeMessages();
 			if (socket.isHandshakeDone()) {
-				key.cancel();
+				// The key is kept for the channel; a canceled key can't be
+				// replaced until the next selection.
+				socket_keys.remove(key);
 				if (socket.isHandshakeSuccessful())
-					addReadyConnection(socket);
+					addReadyConnection(socket, key);
 				else
 					socket.close();
 			}
@@ -239,24 +379,38 @@ public final class Peer extends Thread {
 	}
 
 	private void removeBrokenSockets() {
-		for (SelectionKey key : socket_selector.keys()) {
-			BTSocket socket = (BTSocket) key.attachment();
+		Iterator<SelectionKey> iter = socket_keys.iterator();
+		while (iter.hasNext()) {
+			SelectionKey key = iter.next();
+			BTSocket socket = (BTSocket) target(key);
 			if (socket.isHandshakeExpired() || socket.isError()
 					|| !socket.isOpen()) {
 
 				key.cancel();
 				socket.close();
+				iter.remove();
 			}
 		}
 	}
 
 	private void configureChannelKeys() {
-		// ? To avoid filling up the memory with too many pieces,
-		// disable OP_READ if Torrent writer is busy.
-		for (SelectionKey key : channel_selector.keys()) {
-			if (!key.isValid())
+		// To avoid filling up the memory with received data, OP_READ is
+		// disabled while the write backlog fills the memory budget, i.e.
+		// the writes can't keep up with the downloads. Partial pieces
+		// don't count; they need more reads to be completed.
+		boolean paused = torrent.isWriteBacklogExceeded();
+		Iterator<SelectionKey> iter = channel_keys.iterator();
+		while (iter.hasNext()) {
+			SelectionKey key = iter.next();
+			if (!key.isValid()) {
+				iter.remove();
 				continue;
-			PeerChannel channel = (PeerChannel) key.attachment();
+			}
+			if (paused)
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			else
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			PeerChannel channel = (PeerChannel) target(key);
 			if (channel.hasOutgoingMessages())
 				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
 			else
@@ -274,7 +428,7 @@ public final class Peer extends Thread {
 		return false;
 	}
 
-	private void addReadyConnection(BTSocket socket) {
+	private void addReadyConnection(BTSocket socket, SelectionKey key) {
 		// ? keep every address (unique IPs) that we can't accept
 		// due to max connections limit, for future outgoing connections.
 		if (channels.size() >= MAX_CHANNELS) {
@@ -295,33 +449,32 @@ public final class Peer extends Thread {
 			}
 		}
 
-		PeerChannel channel = new PeerChannel();
+		PeerChannel channel = new PeerChannel(torrent);
 		channel.socket = socket;
 		channel.setAmInitiator(socket.getLocalPort() == this.socket
 				.getLocalPort());
 		channel.addBitfield(torrent.getAvailablePieces(), torrent.numPieces());
 
-		try {
-			socket.register(channel_selector, SelectionKey.OP_READ, channel);
-			channels.add(channel);
-		} catch (IOException e) {
-			e.printStackTrace();
-			socket.close();
-		}
+		key.interestOps(SelectionKey.OP_READ);
+		key.attach(new Handle(channel));
+		channel_keys.add(key);
+		channels.add(channel);
 	}
 
 	private void processIncomingMessages() {
-		for (SelectionKey key : channel_selector.selectedKeys()) {
+		for (SelectionKey key : selected_channel_keys) {
 			if (!key.isValid() || !key.isReadable())
 				continue;
-			PeerChannel channel = (PeerChannel) key.attachment();
+			PeerChannel channel = (PeerChannel) target(key);
 			channel.processIncomingMessages();
 			while (channel.hasUnprocessedIncoming()) {
 				Message m = channel.takeUnprocessedIncoming();
-				if (m.isPiece())
-					torrent.saveBlock(m);
-				else if (m.isBlockRequest())
-					channel.addPiece(torrent.loadBlock(m));
+				if (m.isBlockRequest()) {
+					List<Message> requests = channel.takeContiguousRequests(m);
+					for (Message block : torrent.loadBlocks(requests)) {
+						channel.addPiece(block);
+					}
+				}
 				else {
 					channel.socket.close();
 					break;
@@ -331,16 +484,16 @@ public final class Peer extends Thread {
 	}
 
 	private void processOutgoingMessages() {
-		for (SelectionKey key : channel_selector.selectedKeys()) {
+		for (SelectionKey key : selected_channel_keys) {
 			if (!key.isValid() || !key.isWritable())
 				continue;
-			PeerChannel channel = (PeerChannel) key.attachment();
+			PeerChannel channel = (PeerChannel) target(key);
 			channel.processOutgoingMessages();
 		}
 	}
 
 	private void cancelEndGameRequests() {
-		boolean end = !torrent.hasUnregisteredPieces();
+		boolean end = !torrent.hasWantedPieces();
 		boolean seed = torrent.isSeed();
 		if (!end || seed)
 			return;
@@ -358,20 +511,21 @@ public final class Peer extends Thread {
 		}
 		pending.clear();
 
-		for (SelectionKey key : socket_selector.keys()) {
-			BTSocket socket = (BTSocket) key.attachment();
+		for (SelectionKey key : socket_keys) {
+			BTSocket socket = (BTSocket) target(key);
 			socket.close();
 		}
+		socket_keys.clear();
 
 		for (PeerChannel channel : channels) {
 			channel.socket.close();
 		}
 		channels.clear();
+		channel_keys.clear();
 
 		try {
-			socket.close();
-			channel_selector.close();
-			socket_selector.close();
+			if (socket != null)
+				socket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -431,7 +585,7 @@ public final class Peer extends Thread {
 	}
 
 	private void spawnOutgoingConnections() {
-		int nsockets = socket_selector.keys().size();
+		int nsockets = socket_keys.size();
 		int nchannels = channels.size();
 		if (nsockets + nchannels >= MAX_CHANNELS)
 			return;
@@ -460,9 +614,22 @@ public final class Peer extends Thread {
 		}
 	}
 
+	private void withdrawLostPieces(BitSet lost) {
+		// Pieces whose writes failed are missing again, and may make us
+		// interested again.
+		if (lost.isEmpty())
+			return;
+		for (PeerChannel channel : channels) {
+			channel.withdraw(lost);
+		}
+		updateAmInterestedState();
+	}
+
 	private void updateAmInterestedState() {
+		BitSet have = torrent.getAvailablePieces();
+		BitSet skipped = torrent.getSkippedPieces();
 		for (PeerChannel channel : channels) {
-			channel.updateAmInterested();
+			channel.updateAmInterested(have, skipped);
 		}
 	}
 
@@ -485,9 +652,14 @@ public final class Peer extends Thread {
 		// The number of channels that will contribute to a particular piece
 		// depends on how many requests each channel can pipeline.
 
-		if (torrent.isSeed() || !torrent.hasUnregisteredPieces())
+		if (torrent.isSeed() || !torrent.hasWantedPieces())
+			return;
+
+		if (torrent.isChecking())
 			return;
 
+		requestStreamBlocks();
+
 		// When we begin downloading, multiple random pieces may be selected.
 		boolean begin = !torrent.hasAvailablePieces();
 
@@ -507,12 +679,14 @@ public final class Peer extends Thread {
 								piece.getNotRequested());
 					}
 				}
-			if (channel.canRequestMore()) {
+			if (channel.canRequestMore() && !torrent.isMemoryExceeded()) {
 				int index = begin ? selectRandomPiece(channel)
 						: selectRarePiece(channel);
 				if (index < 0)
 					continue;
 				Piece piece = torrent.registerPiece(index);
+				if (piece == null)
+					continue;
 				channel.addMaximumRequests(piece, piece.getNotRequested());
 				// Update partial_entries and possibly prevent next channels
 				// from selecting a new piece, and avoid piling up pieces.
@@ -521,10 +695,67 @@ public final class Peer extends Thread {
 		}
 	}
 
+	private void requestStreamBlocks() {
+		// While a stream is reading, the pieces ahead of it are requested
+		// first, in deadline order, from the fastest channels. A piece's
+		// deadline is when the stream is expected to reach it. The piece
+		// under the stream is late, so its missing blocks may be requested
+		// again from the fastest channel. The window ends with the region
+		// of the stream, and skipped pieces are left out. Pieces outside
+		// the window are selected as usual.
+
+		long position = torrent.getStreamPosition();
+		long end = torrent.getStreamEnd();
+		if (position < 0 || position >= end)
+			return;
+
+		List<PeerChannel> fastest = new ArrayList<PeerChannel>(channels);
+		Collections.sort(fastest);
+
+		int piece_length = torrent.getPieceLength();
+		long rate = client_info.getStreamingRate();
+		BitSet skipped = torrent.getSkippedPieces();
+		int first = (int) (position / piece_length);
+		int last = (int) ((end - 1) / piece_length);
+		for (int i = first; i <= last; i++) {
+			long distance = Math.max(0, (long) i * piece_length - position);
+			long deadline = (long) (distance * 1e9 / rate);
+			if (i - first >= MIN_STREAM_WINDOW && deadline > STREAM_HORIZON)
+				break;
+			if (torrent.hasPiece(i) || skipped.get(i))
+				continue;
+
+			boolean late = i == first;
+			Piece piece = torrent.getPartialPiece(i);
+			for (PeerChannel channel : fastest) {
+				if (channel.amChoked() || !channel.amInterested())
+					continue;
+				if (!channel.hasPiece(i) || !channel.canRequestMore())
+					continue;
+				if (piece == null) {
+					piece = torrent.registerPiece(i);
+					if (piece == null)
+						break;
+				}
+				if (late) {
+					BitSet blocks = channel.findNotRequested(piece);
+					channel.addMaximumRequests(piece, blocks);
+					break;
+				}
+				channel.addMaximumRequests(piece, piece.getNotRequested());
+				if (piece.getNotRequested().isEmpty())
+					break;
+			}
+		}
+	}
+
 	private void requestEndGameBlocks() {
 		// On end-game, a block may be requested from different channels.
 
-		if (torrent.isSeed() || torrent.hasUnregisteredPieces())
+		if (torrent.isSeed() || torrent.hasWantedPieces())
+			return;
+
+		if (torrent.isChecking())
 			return;
 
 		Collection<Piece> partial_entries = torrent.getPartialPieces();
@@ -550,15 +781,32 @@ public final class Peer extends Thread {
 		}
 	}
 
+	private BitSet findSelectablePieces(PeerChannel channel_interested) {
+		// Wanted pieces that the channel has. Only pieces of the highest
+		// priority among them can be selected.
+		BitSet selectable = torrent.getWantedPieces();
+		selectable.and(channel_interested.getAvailablePieces());
+		Priority max = Priority.SKIP;
+		for (int i = selectable.nextSetBit(0); i >= 0; i = selectable
+				.nextSetBit(i + 1)) {
+			Priority priority = torrent.getPiecePriority(i);
+			if (priority.compareTo(max) > 0)
+				max = priority;
+		}
+		for (int i = selectable.nextSetBit(0); i >= 0; i = selectable
+				.nextSetBit(i + 1)) {
+			if (torrent.getPiecePriority(i) != max)
+				selectable.clear(i);
+		}
+		return selectable;
+	}
+
 	private int selectRandomPiece(PeerChannel channel_interested) {
-		BitSet unregistered = torrent.getUnregistered();
-		BitSet available = channel_interested.getAvailablePieces();
+		BitSet selectable = findSelectablePieces(channel_interested);
 		int index = -1;
 		int nmatch = 0;
-		int start_bit = available.nextSetBit(0);
-		for (int i = start_bit; i >= 0; i = available.nextSetBit(i + 1)) {
-			if (!unregistered.get(i))
-				continue;
+		int start_bit = selectable.nextSetBit(0);
+		for (int i = start_bit; i >= 0; i = selectable.nextSetBit(i + 1)) {
 			if (Math.floor(Math.random() * ++nmatch) == 0)
 				index = i;
 		}
@@ -575,14 +823,14 @@ public final class Peer extends Thread {
 		Integer[] segments = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
 		Collections.shuffle(Arrays.asList(segments));
 
-		BitSet unregistered = torrent.getUnregistered();
-		int pieces_length = unregistered.length();
+		BitSet selectable = findSelectablePieces(channel_interested);
+		int pieces_length = selectable.length();
 		for (Integer seg : segments) {
 			int min = Integer.MAX_VALUE;
 			int index = -1;
 			int nmatch = 0;
 			for (int i = seg; i < pieces_length; i += 10) {
-				if (!unregistered.get(i) || !channel_interested.hasPiece(i))
+				if (!selectable.get(i))
 					continue;
 				int availability = 0;
 				for (PeerChannel channel : channels) {
@@ -609,6 +857,16 @@ public final class Peer extends Thread {
 		return -1;
 	}
 
+	private void saveResumeData() {
+		// Once every 60s
+		long now = System.nanoTime();
+		if (now < resume_timeout)
+			return;
+		if (resume_timeout != 0)
+			torrent.saveResumeData();
+		resume_timeout = now + 60 * SECOND;
+	}
+
 	private void keepConnectionsAlive() {
 		long now = System.nanoTime();
 		for (PeerChannel channel : channels) {
@@ -1,5 +1,8 @@
 package com.ndtorrent.client;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
@@ -9,12 +12,18 @@ import java.util.List;
 public final class PeerChannel implements Comparable<PeerChannel> {
 	static final int MAX_REQUESTS = 255;
 
+	// Longer requests are refused, and the connection is closed.
+	static final int MAX_REQUEST_LENGTH = 128 * 1024;
+
 	// A rolling total longer than the choking round can make the
 	// rating a bit more accurate due to data transmission delays.
 	private static final int ROLLING_SECS = 15;
 
 	public BTSocket socket;
 
+	// Received blocks are saved as soon as they are dispatched.
+	private final Torrent torrent;
+
 	private BitSet available = new BitSet();
 	private BitSet advertised = new BitSet();
 	private BitSet participated = new BitSet(); // Pieces received
@@ -36,19 +45,21 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 	private long unchoke_end_time;
 	private RollingTotal blocks_total = new RollingTotal(ROLLING_SECS);
 
-	private LinkedList<Message> incoming = new LinkedList<Message>();
 	private LinkedList<Message> outgoing = new LinkedList<Message>();
 
 	// Distinct list for Piece messages to reduce "iterate and filter" code.
 	private LinkedList<Message> outgoing_pieces = new LinkedList<Message>();
 
-	// Requests and pieces the client has received.
-	private LinkedList<Message> unprocessed_pieces = new LinkedList<Message>();
-	private LinkedList<Message> unprocessed_requests = new LinkedList<Message>();
+	// Requests the client has received.
+	private ArrayDeque<Message> unprocessed_requests = new ArrayDeque<Message>();
 
 	// Requests the client has sent.
 	private LinkedList<Message> unfulfilled = new LinkedList<Message>();
 
+	public PeerChannel(Torrent torrent) {
+		this.torrent = torrent;
+	}
+
 	@Override
 	public int compareTo(PeerChannel other) {
 		// Blocks total comparison for descending order, c2 > c1
@@ -78,16 +89,36 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 	}
 
 	public void processIncomingMessages() {
-		receiveIncoming();
-		processIncoming();
+		// Messages are dispatched from the receive buffer of the socket.
+		// Only the requests that are queued for the Peer are copied out of
+		// it, and the payload of the pieces, which is copied to the piece.
+		while (true) {
+			socket.processInput();
+			InputFrame frame = socket.peekInputMessage();
+			if (frame == null)
+				return;
+			if (!processIncoming(frame)) {
+				socket.close();
+				return;
+			}
+		}
 	}
 
 	public void processOutgoingMessages() {
 		// Notification messages have higher priority and are sent ASAP,
 		// because subsequent Pieces in a slow upload channel can block
-		// peers from communicating.
-		sendOutgoing(outgoing);
-		sendOutgoing(outgoing_pieces);
+		// peers from communicating. Both are added to the output batch of
+		// the socket, notifications first, and each batch is written with
+		// one system call.
+		while (true) {
+			addOutgoing(outgoing);
+			addOutgoing(outgoing_pieces);
+			if (!socket.hasOutputMessage())
+				return;
+			socket.processOutput();
+			if (socket.hasOutputMessage() || socket.isOutputError())
+				return;
+		}
 	}
 
 	public boolean hasOutgoingMessages() {
@@ -96,23 +127,38 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 	}
 
 	private boolean hasReadyOutgoingPiece() {
+		// Dropped pieces count, so that they are removed.
 		for (Message m : outgoing_pieces) {
-			if (m.isPrepared())
+			if (m.isPrepared() || m.isDropped())
 				return true;
 		}
 		return false;
 	}
 
 	public boolean hasUnprocessedIncoming() {
-		return !unprocessed_pieces.isEmpty() || !unprocessed_requests.isEmpty();
+		return !unprocessed_requests.isEmpty();
 	}
 
 	public Message takeUnprocessedIncoming() {
 		// Returns null if no message exists.
-		if (!unprocessed_pieces.isEmpty())
-			return unprocessed_pieces.pollFirst();
-		else
-			return unprocessed_requests.pollFirst();
+		return unprocessed_requests.pollFirst();
+	}
+
+	public List<Message> takeContiguousRequests(Message first) {
+		// The given request, followed by the queued requests that continue
+		// it within the same piece, so that they can be read at once.
+		List<Message> requests = new ArrayList<Message>();
+		requests.add(first);
+		int index = first.getPieceIndex();
+		long end = first.getBlockBegin() + first.getBlockLength();
+		while (!unprocessed_requests.isEmpty()) {
+			Message m = unprocessed_requests.peekFirst();
+			if (m.getPieceIndex() != index || m.getBlockBegin() != end)
+				break;
+			requests.add(unprocessed_requests.pollFirst());
+			end += m.getBlockLength();
+		}
+		return requests;
 	}
 
 	public boolean participatedIn(int piece_index) {
@@ -227,14 +273,21 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 	}
 
 	public void advertise(BitSet pieces) {
-		advertised.xor(pieces);
-		int start_bit = advertised.nextSetBit(0);
-		for (int i = start_bit; i >= 0; i = advertised.nextSetBit(i + 1)) {
+		BitSet news = (BitSet) pieces.clone();
+		news.andNot(advertised);
+		int start_bit = news.nextSetBit(0);
+		for (int i = start_bit; i >= 0; i = news.nextSetBit(i + 1)) {
 			outgoing.add(Message.newHavePiece(i));
 		}
 		advertised.or(pieces);
 	}
 
+	public void withdraw(BitSet pieces) {
+		// Pieces that were lost after being advertised. They are announced
+		// again once they are available.
+		advertised.andNot(pieces);
+	}
+
 	public void setAmInitiator(boolean initiator) {
 		am_initiator = initiator;
 	}
@@ -305,9 +358,11 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 		}
 	}
 
-	public void updateAmInterested() {
+	public void updateAmInterested(BitSet have, BitSet skipped) {
+		// Pieces of skipped files don't make us interested.
 		BitSet missing = (BitSet) available.clone();
-		missing.andNot(advertised);
+		missing.andNot(have);
+		missing.andNot(skipped);
 		boolean be_interested = missing.nextSetBit(0) >= 0;
 		if (am_interested == be_interested)
 			return;
@@ -333,10 +388,10 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 		outgoing.add(Message.newKeepAlive());
 	}
 
-	private void removeOutgoingPiece(Message m) {
+	private void removeOutgoingPiece(int index, int begin, int length) {
 		Iterator<Message> iter = outgoing_pieces.iterator();
 		while (iter.hasNext()) {
-			if (m.sameBlockRegion(iter.next())) {
+			if (iter.next().isBlockRegion(index, begin, length)) {
 				iter.remove();
 				return;
 			}
@@ -398,100 +453,115 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 		}
 	}
 
-	private void removeUnprocessedRequest(Message m) {
+	private void removeUnprocessedRequest(int index, int begin, int length) {
 		Iterator<Message> iter = unprocessed_requests.iterator();
 		while (iter.hasNext()) {
-			if (m.sameBlockRegion(iter.next())) {
+			if (iter.next().isBlockRegion(index, begin, length)) {
 				iter.remove();
 				return;
 			}
 		}
 	}
 
-	private void receiveIncoming() {
-		while (true) {
-			socket.processInput();
-			if (!socket.hasInputMessage())
-				return;
-			incoming.add(socket.takeInputMessage());
-		}
-	}
-
-	private void sendOutgoing(List<Message> messages) {
-		socket.processOutput();
+	private void addOutgoing(List<Message> messages) {
 		Iterator<Message> iter = messages.iterator();
 		while (iter.hasNext()) {
 			Message m = iter.next();
+			if (m.isDropped()) {
+				iter.remove();
+				continue;
+			}
 			if (!m.isPrepared())
 				continue;
-			if (socket.hasOutputMessage())
-				return;
 			// System.out.printf("sent %s, %d\n", m.getType(), m.getLength());
-			socket.setOutputMessage(m);
-			socket.processOutput();
+			if (!socket.addOutputMessage(m))
+				return;
 			iter.remove();
 		}
 	}
 
-	private void processIncoming() {
-		while (!incoming.isEmpty()) {
-			Message m = incoming.pollFirst();
-
-			// System.out.printf("got %s, %d\n", m.getType(), m.getLength());
-
-			if (m.isKeepAlive())
-				continue;
-
-			switch (m.getID()) {
-			case Message.CHOKE:
-				onChoke(m);
-				break;
-			case Message.UNCHOKE:
-				onUnchoke(m);
-				break;
-			case Message.INTERESTED:
-				onInterested(m);
-				break;
-			case Message.NOT_INTERESTED:
-				onNotInterested(m);
-				break;
-			case Message.HAVE:
-				onHave(m);
-				break;
-			case Message.BITFIELD:
-				onBitfield(m);
-				break;
-			case Message.REQUEST:
-				onRequest(m);
-				break;
-			case Message.PIECE:
-				onPiece(m);
-				break;
-			case Message.CANCEL:
-				onCancel(m);
-				break;
-
-			default:
-				socket.close();
-				return;
+	private boolean processIncoming(InputFrame frame) {
+		// Returns false if the message is invalid.
+
+		// System.out.printf("got %d, %d\n", frame.getID(), frame.getLength());
+
+		switch (frame.getID()) {
+		case -1: // keep-alive
+			break;
+		case Message.CHOKE:
+			onChoke();
+			break;
+		case Message.UNCHOKE:
+			onUnchoke();
+			break;
+		case Message.INTERESTED:
+			onInterested();
+			break;
+		case Message.NOT_INTERESTED:
+			onNotInterested();
+			break;
+		case Message.HAVE:
+			if (frame.getLength() != 5 || frame.getInt(1) < 0
+					|| frame.getInt(1) >= torrent.numPieces())
+				return false;
+			onHave(frame.getInt(1));
+			break;
+		case Message.BITFIELD:
+			onBitfield(socket.takeInputMessage());
+			return true;
+		case Message.REQUEST:
+			if (frame.getLength() != 13
+					|| !isValidRequest(frame.getInt(1), frame.getInt(5),
+							frame.getInt(9)))
+				return false;
+			if (!is_choked && numIncomingRequests() < MAX_REQUESTS) {
+				onRequest(socket.takeInputMessage());
+				return true;
 			}
+			break;
+		case Message.PIECE:
+			// The block must lie within a piece, like a request.
+			if (frame.getLength() < 9
+					|| !isValidRequest(frame.getInt(1), frame.getInt(5),
+							frame.getLength() - 9))
+				return false;
+			onPiece(frame.getInt(1), frame.getInt(5), frame.getPayload(9));
+			break;
+		case Message.CANCEL:
+			if (frame.getLength() != 13)
+				return false;
+			onCancel(frame.getInt(1), frame.getInt(5), frame.getInt(9));
+			break;
+
+		default:
+			return false;
 		}
+		socket.skipInputMessage();
+		return true;
+	}
+
+	private boolean isValidRequest(int index, int begin, int length) {
+		// A region past the end of the piece could never be sent, nor
+		// received.
+		return index >= 0 && index < torrent.numPieces() && begin >= 0
+				&& length > 0 && length <= MAX_REQUEST_LENGTH
+				&& (long) begin + length <= torrent.getPieceLength(index);
 	}
 
-	private void onChoke(Message m) {
+	private void onChoke() {
 		am_choked = true;
 		removeOutgoingRequests();
 	}
 
-	private void onUnchoke(Message m) {
+	private void onUnchoke() {
 		am_choked = false;
 	}
 
-	private void onInterested(Message m) {
+	private void onInterested() {
 		is_interested = true;
 	}
 
-	private void onNotInterested(Message m) {
+	private void onNotInterested() {
 		is_interested = false;
 
 		// Discard pending pieces because it might not get choked.
@@ -499,8 +569,8 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 		unprocessed_requests.clear();
 	}
 
-	private void onHave(Message m) {
-		available.set(m.getPieceIndex());
+	private void onHave(int index) {
+		available.set(index);
 	}
 
 	private void onBitfield(Message m) {
@@ -509,31 +579,29 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 	}
 
 	private void onRequest(Message m) {
-		if (!is_choked && numIncomingRequests() < MAX_REQUESTS)
-			unprocessed_requests.add(m);
+		unprocessed_requests.add(m);
 	}
 
-	private void onPiece(Message m) {
+	private void onPiece(int index, int begin, ByteBuffer payload) {
 		Iterator<Message> iter = unfulfilled.iterator();
 		while (iter.hasNext()) {
 			Message request = iter.next();
-			if (m.sameBlockRegion(request)) {
+			if (request.isBlockRegion(index, begin, payload.remaining())) {
 				iter.remove();
 				break;
 			}
 		}
 		// If an unfulfilled request wasn't found, the request probably was
-		// canceled because the block is delayed. We enqueue it for further
-		// processing anyway.
-		unprocessed_pieces.add(m);
-		participated.set(m.getPieceIndex());
+		// canceled because the block is delayed. We save it anyway.
+		torrent.saveBlock(index, begin, payload);
+		participated.set(index);
 	}
 
-	private void onCancel(Message m) {
+	private void onCancel(int index, int begin, int length) {
 		// The request is either already processed and the piece is enqueued,
-		removeOutgoingPiece(m);
+		removeOutgoingPiece(index, begin, length);
 		// or unprocessed.
-		removeUnprocessedRequest(m);
+		removeUnprocessedRequest(index, begin, length);
 	}
 
 }
@@ -1,7 +1,10 @@
 package com.ndtorrent.client;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Piece {
 	private ByteBuffer data;
@@ -16,12 +19,38 @@ public final class Piece {
 	private BitSet not_requested;
 	private BitSet reserved;
 
+	// Used when blocks are written through to the storage, instead of
+	// being assembled in the data buffer. The digest covers the leading
+	// blocks that arrived in order.
+	private MessageDigest digest;
+	private int hashed_length;
+	// One count per write in flight, plus one until the piece completes.
+	private AtomicInteger pending_writes = new AtomicInteger(1);
+	private volatile boolean is_write_error;
+	private BitSet written; // blocks whose writes have completed
+
+	private volatile boolean is_valid;
+
 	public Piece(int index, int length) {
 		this(index, length, 1 * 1024);
 	}
 
+	public Piece(int index, int length, ByteBuffer data) {
+		this(index, length, 1 * 1024, data);
+	}
+
 	public Piece(int index, int piece_length, int block_length) {
-		data = ByteBuffer.allocate(piece_length);
+		this(index, piece_length, block_length, ByteBuffer
+				.allocate(piece_length));
+	}
+
+	public Piece(int index, int piece_length, int block_length,
+			ByteBuffer data) {
+		// The buffer may be larger than the piece, i.e. a pooled buffer.
+		// A null buffer means that the blocks are written through.
+		this.data = data;
+		if (data != null)
+			data.limit(piece_length);
 
 		this.index = index;
 		this.piece_length = piece_length;
@@ -50,6 +79,17 @@ public final class Piece {
 		reserved.and(requests);
 	}
 
+	public synchronized void restoreBlocks(BitSet blocks) {
+		// Marks blocks as received, i.e. blocks that were saved before a
+		// restart. Their data must already be in place, and they are on
+		// disk, hence also written.
+		available.or(blocks);
+		not_requested.andNot(blocks);
+		if (written == null)
+			written = new BitSet(num_blocks);
+		written.or(blocks);
+	}
+
 	public void setBlocksAsReserved(int fromIndex, int toIndex) {
 		reserved.set(fromIndex, toIndex, true);
 	}
@@ -70,6 +110,13 @@ public final class Piece {
 		return data;
 	}
 
+	public ByteBuffer releaseData() {
+		// Detaches the buffer, so that it can be returned to its pool.
+		ByteBuffer released = data;
+		data = null;
+		return released;
+	}
+
 	public int numBlocks() {
 		return num_blocks;
 	}
@@ -112,25 +159,92 @@ public final class Piece {
 	private boolean validBlockRegion(int offset, int length) {
 		if (offset < 0 || offset % block_length != 0)
 			return false;
-		return offset + length <= data.capacity();
+		return offset + length <= piece_length;
 	}
 
-	public void write(Message block) {
-		int length = block.getPayloadLength() - 2 * 4;
-		int offset = block.getBlockBegin();
+	public boolean write(int offset, ByteBuffer payload) {
+		// Copies the remaining bytes of the payload, e.g. a view of a
+		// receive buffer, without moving its position. Returns false if
+		// the block doesn't fit in the piece.
+		int length = payload.remaining();
 		if (!validBlockRegion(offset, length))
-			return;
+			return false;
 
 		int start = getBlockIndex(offset);
 		int block_length = getBlockLength(start);
-		int nblocks = block.getBlockLength() / block_length;
-		if (nblocks * block_length < block.getBlockLength())
+		int nblocks = length / block_length;
+		if (nblocks * block_length < length)
 			nblocks++;
 		available.set(start, start + nblocks, true);
 		not_requested.set(start, start + nblocks, false);
 
-		data.position(offset);
-		data.put(block.getData().array(), 1 + 2 * 4, length);
+		if (data != null) {
+			data.position(offset);
+			data.put(payload.duplicate());
+		}
+		return true;
+	}
+
+	public MessageDigest getDigest() {
+		if (digest == null) {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+			}
+		}
+		return digest;
+	}
+
+	public void updateDigest(int offset, ByteBuffer bytes) {
+		// Advances the digest only if the bytes continue the hashed region.
+		// Blocks that arrive out of order have to be hashed later.
+		if (offset != hashed_length)
+			return;
+		hashed_length += bytes.remaining();
+		getDigest().update(bytes);
+	}
+
+	public int getHashedLength() {
+		return hashed_length;
+	}
+
+	public void beginWrite() {
+		pending_writes.incrementAndGet();
+	}
+
+	public boolean endWrite() {
+		// Returns true when the last write has finished and the piece
+		// is complete. Called once more when the piece completes.
+		return pending_writes.decrementAndGet() == 0;
+	}
+
+	public synchronized void setBlocksWritten(int offset, int length) {
+		// Called by the disk threads when the write of a block completes.
+		if (written == null)
+			written = new BitSet(num_blocks);
+		int start = getBlockIndex(offset);
+		written.set(start, start + (length + block_length - 1) / block_length);
+	}
+
+	public synchronized BitSet getWrittenBlocks() {
+		return written != null ? (BitSet) written.clone() : new BitSet();
+	}
+
+	public void setWriteError() {
+		is_write_error = true;
+	}
+
+	public boolean isWriteError() {
+		return is_write_error;
+	}
+
+	public void setValid(boolean valid) {
+		is_valid = valid;
+	}
+
+	public boolean isValid() {
+		// The result of the hash verification.
+		return is_valid;
 	}
 
 }
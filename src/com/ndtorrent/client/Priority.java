@@ -0,0 +1,7 @@
+package com.ndtorrent.client;
+
+public enum Priority {
+	// Declared in ascending order; a piece gets the highest priority
+	// of the files it overlaps.
+	SKIP, LOW, NORMAL, HIGH
+}
@@ -0,0 +1,134 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class ReadCache {
+	// Whole pieces, loaded for uploading, are kept in memory in LRU order.
+	// When the byte budget is exceeded the least recently used pieces
+	// are evicted. The cache is shared by all torrents of a client.
+
+	private final long capacity;
+
+	// Access-ordered; the eldest entry is the least recently used.
+	private LinkedHashMap<Key, ByteBuffer> pieces = new LinkedHashMap<Key, ByteBuffer>(
+			16, 0.75f, true);
+
+	private static final class Key {
+		final Torrent torrent;
+		final int index;
+
+		Key(Torrent torrent, int index) {
+			this.torrent = torrent;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return torrent == other.torrent && index == other.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(torrent) + index;
+		}
+	}
+
+	private long size;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public ReadCache(long capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException(
+					"capacity must be greater than zero");
+
+		this.capacity = capacity;
+	}
+
+	public synchronized boolean read(Torrent torrent, int index, int offset,
+			ByteBuffer dst) {
+		// Copies the cached region of the piece to the remaining bytes of
+		// the destination buffer. Returns false if the piece isn't cached.
+		ByteBuffer data = pieces.get(new Key(torrent, index));
+		if (data == null) {
+			misses++;
+			return false;
+		}
+		ByteBuffer src = data.duplicate();
+		src.limit(offset + dst.remaining());
+		src.position(offset);
+		dst.put(src);
+		hits++;
+		return true;
+	}
+
+	public synchronized boolean contains(Torrent torrent, int index) {
+		// Doesn't count as an access.
+		return pieces.containsKey(new Key(torrent, index));
+	}
+
+	public synchronized void put(Torrent torrent, int index, ByteBuffer data) {
+		// Pieces larger than the whole budget are not cached.
+		if (data.capacity() > capacity)
+			return;
+
+		Key key = new Key(torrent, index);
+		ByteBuffer old = pieces.put(key, data);
+		if (old != null)
+			size -= old.capacity();
+		size += data.capacity();
+
+		Iterator<Map.Entry<Key, ByteBuffer>> iter = pieces.entrySet()
+				.iterator();
+		while (size > capacity && iter.hasNext()) {
+			Map.Entry<Key, ByteBuffer> eldest = iter.next();
+			if (eldest.getKey().equals(key))
+				continue;
+			size -= eldest.getValue().capacity();
+			iter.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear(Torrent torrent) {
+		// Evicts the pieces of a torrent that closes.
+		Iterator<Map.Entry<Key, ByteBuffer>> iter = pieces.entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, ByteBuffer> entry = iter.next();
+			if (entry.getKey().torrent == torrent) {
+				size -= entry.getValue().capacity();
+				iter.remove();
+			}
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+}
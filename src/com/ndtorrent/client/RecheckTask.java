@@ -0,0 +1,77 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.RecursiveAction;
+
+final class RecheckTask extends RecursiveAction {
+	// Verifies a range of pieces against their SHA-1 hashes. Large ranges
+	// are split in halves, small ranges are read sequentially with a
+	// buffer that holds multiple pieces.
+
+	private static final long serialVersionUID = 1L;
+
+	static final int MAX_RANGE_LENGTH = 64 * 1024 * 1024;
+	static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private final Torrent torrent;
+	private final int from;
+	private final int to;
+
+	RecheckTask(Torrent torrent, int from, int to) {
+		// Checks the pieces in [from, to).
+		this.torrent = torrent;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		int piece_length = torrent.getPieceLength();
+		if ((long) (to - from) * piece_length > MAX_RANGE_LENGTH
+				&& to - from > 1) {
+			int middle = (from + to) >>> 1;
+			invokeAll(new RecheckTask(torrent, from, middle), new RecheckTask(
+					torrent, middle, to));
+			return;
+		}
+
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			return;
+		}
+
+		int pieces_per_buffer = Math.max(1, BUFFER_SIZE / piece_length);
+		ByteBuffer buffer = ByteBuffer.allocate(pieces_per_buffer
+				* piece_length);
+		for (int i = from; i < to; i += pieces_per_buffer) {
+			if (torrent.isClosing())
+				return;
+			int count = Math.min(pieces_per_buffer, to - i);
+			long length = (long) (count - 1) * piece_length
+					+ torrent.getPieceLength(i + count - 1);
+			buffer.clear();
+			buffer.limit((int) length);
+			boolean valid_read = torrent.read((long) i * piece_length, buffer);
+			for (int j = 0; j < count; j++) {
+				int index = i + j;
+				buffer.limit(j * piece_length + torrent.getPieceLength(index));
+				buffer.position(j * piece_length);
+				// If the batch can't be read, e.g. it touches a file that
+				// was never created, each piece is read on its own.
+				boolean valid = valid_read
+						|| torrent.read((long) index * piece_length,
+								buffer.duplicate());
+				if (valid) {
+					sha1.update(buffer);
+					valid = torrent.hasPieceHash(index, sha1.digest());
+				}
+				torrent.onPieceChecked(index, valid);
+			}
+		}
+	}
+
+}
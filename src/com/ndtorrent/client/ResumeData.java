@@ -0,0 +1,223 @@
+package com.ndtorrent.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public final class ResumeData {
+	// The fast-resume record of a torrent. It is bencoded as a dictionary:
+	// { info-hash, piece length, pieces (bitfield of verified pieces),
+	// files (list of {length, mtime, priority}), partial (list of {index,
+	// blocks}) }. The record is valid only while the files have the
+	// recorded lengths and modification times; files that had not been
+	// created (mtime 0) aren't checked, since no recorded data is in them.
+
+	private String info_hash;
+	private int piece_length;
+	private int num_pieces;
+	private BitSet available;
+	private long[] file_lengths = new long[0];
+	private long[] file_mtimes = new long[0];
+	private Priority[] file_priorities = new Priority[0];
+	private Map<Integer, BitSet> partial_blocks = new TreeMap<Integer, BitSet>();
+
+	public ResumeData(String info_hash, int piece_length, int num_pieces,
+			BitSet available) {
+
+		this.info_hash = info_hash;
+		this.piece_length = piece_length;
+		this.num_pieces = num_pieces;
+		this.available = available;
+	}
+
+	public String getInfoHash() {
+		return info_hash;
+	}
+
+	public int getPieceLength() {
+		return piece_length;
+	}
+
+	public int numPieces() {
+		return num_pieces;
+	}
+
+	public BitSet getAvailablePieces() {
+		return available;
+	}
+
+	public void addPartialPiece(int index, BitSet blocks) {
+		partial_blocks.put(index, blocks);
+	}
+
+	public Map<Integer, BitSet> getPartialPieces() {
+		return partial_blocks;
+	}
+
+	public void setFiles(BTFile[] files) {
+		// Records the current length, modification time and priority of
+		// each file.
+		file_lengths = new long[files.length];
+		file_mtimes = new long[files.length];
+		file_priorities = new Priority[files.length];
+		for (int i = 0; i < files.length; i++) {
+			file_lengths[i] = files[i].getLength();
+			file_mtimes[i] = files[i].lastModified();
+			file_priorities[i] = files[i].getPriority();
+		}
+	}
+
+	public boolean restorePriorities(BTFile[] files) {
+		// Sets the recorded priorities on the files. Returns false if the
+		// record doesn't match the files, or has no priorities.
+		if (files.length != file_priorities.length)
+			return false;
+		boolean restored = false;
+		for (int i = 0; i < files.length; i++) {
+			if (file_priorities[i] != null) {
+				files[i].setPriority(file_priorities[i]);
+				restored = true;
+			}
+		}
+		return restored;
+	}
+
+	public boolean matchesFiles(BTFile[] files) {
+		if (files.length != file_lengths.length)
+			return false;
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getLength() != file_lengths[i])
+				return false;
+			if (file_mtimes[i] != 0
+					&& files[i].lastModified() != file_mtimes[i])
+				return false;
+		}
+		return true;
+	}
+
+	public void save(File file) throws IOException {
+		// The record is written to a temporary file which then replaces
+		// the previous record, so that a crash never leaves it truncated.
+		SortedMap<String, Object> dict = new TreeMap<String, Object>();
+		dict.put("info-hash", info_hash);
+		dict.put("piece length", Long.valueOf(piece_length));
+		dict.put("pieces", toBinaryString(available, num_pieces));
+
+		List<Object> files = new ArrayList<Object>();
+		for (int i = 0; i < file_lengths.length; i++) {
+			SortedMap<String, Object> f = new TreeMap<String, Object>();
+			f.put("length", Long.valueOf(file_lengths[i]));
+			f.put("mtime", Long.valueOf(file_mtimes[i]));
+			f.put("priority", file_priorities[i].name());
+			files.add(f);
+		}
+		dict.put("files", files);
+
+		List<Object> partial = new ArrayList<Object>();
+		for (Map.Entry<Integer, BitSet> entry : partial_blocks.entrySet()) {
+			SortedMap<String, Object> p = new TreeMap<String, Object>();
+			BitSet blocks = entry.getValue();
+			p.put("index", Long.valueOf(entry.getKey()));
+			p.put("blocks", toBinaryString(blocks, blocks.length()));
+			partial.add(p);
+		}
+		dict.put("partial", partial);
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File temp = new File(parent, file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(Bencoder.encode(dict).getBytes("ISO-8859-1"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static ResumeData load(File file) {
+		// Returns null if the record doesn't exist or is malformed.
+		if (!file.isFile())
+			return null;
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			Object decoded = Bdecoder.decode(new String(bytes, "ISO-8859-1"));
+			if (!(decoded instanceof Map))
+				return null;
+			Map<String, Object> dict = (Map<String, Object>) decoded;
+
+			String info_hash = (String) dict.get("info-hash");
+			Long piece_length = (Long) dict.get("piece length");
+			String pieces = (String) dict.get("pieces");
+			List<Object> files = (List<Object>) dict.get("files");
+			List<Object> partial = (List<Object>) dict.get("partial");
+			if (info_hash == null || piece_length == null || pieces == null
+					|| files == null)
+				return null;
+
+			ResumeData data = new ResumeData(info_hash,
+					piece_length.intValue(), pieces.length() * 8,
+					fromBinaryString(pieces));
+
+			data.file_lengths = new long[files.size()];
+			data.file_mtimes = new long[files.size()];
+			data.file_priorities = new Priority[files.size()];
+			for (int i = 0; i < files.size(); i++) {
+				Map<String, Object> f = (Map<String, Object>) files.get(i);
+				data.file_lengths[i] = (Long) f.get("length");
+				data.file_mtimes[i] = (Long) f.get("mtime");
+				// Records without priorities leave the files as they are.
+				String priority = (String) f.get("priority");
+				if (priority != null)
+					data.file_priorities[i] = Priority.valueOf(priority);
+			}
+
+			if (partial != null)
+				for (Object o : partial) {
+					Map<String, Object> p = (Map<String, Object>) o;
+					Long index = (Long) p.get("index");
+					String blocks = (String) p.get("blocks");
+					data.addPartialPiece(index.intValue(),
+							fromBinaryString(blocks));
+				}
+
+			return data;
+		} catch (Exception e) {
+			// A malformed record is treated as missing.
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static String toBinaryString(BitSet set, int nbits) {
+		// Same bit order as the BITFIELD message.
+		char[] chars = new char[(nbits + 7) / 8];
+		for (int i = set.nextSetBit(0); i >= 0 && i < nbits; i = set
+				.nextSetBit(i + 1)) {
+			chars[i / 8] |= 1 << (7 - i % 8);
+		}
+		return new String(chars);
+	}
+
+	private static BitSet fromBinaryString(String text) {
+		BitSet set = new BitSet(text.length() * 8);
+		for (int i = 0; i < text.length() * 8; i++) {
+			if ((text.charAt(i / 8) & (1 << (7 - i % 8))) != 0)
+				set.set(i);
+		}
+		return set;
+	}
+
+}
@@ -0,0 +1,29 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface StorageBackend {
+	// The data of a torrent, addressed by torrent offsets. Implementations
+	// must allow several disk threads to read and write concurrently.
+
+	// Returns true if the storage already had data.
+	public boolean open() throws IOException;
+
+	// Fills the remaining bytes of the buffers, in order, starting at the
+	// given offset. Returns the number of bytes read.
+	public long read(long offset, ByteBuffer[] dsts) throws IOException;
+
+	// Writes the remaining bytes of the buffers, in order, starting at the
+	// given offset. Returns the number of bytes written.
+	public long write(long offset, ByteBuffer[] srcs) throws IOException;
+
+	public void flush() throws IOException;
+
+	public void close();
+
+	// A persistent storage keeps its data after it is closed, which makes
+	// a fast-resume record meaningful.
+	public boolean isPersistent();
+
+}
@@ -0,0 +1,8 @@
+package com.ndtorrent.client;
+
+public enum StorageType {
+	FILE, // RandomAccessFile channels
+	MAPPED, // memory-mapped files
+	ASYNC, // AsynchronousFileChannels, many operations in flight
+	MEMORY // no disk at all, for benchmarking
+}
@@ -1,45 +1,117 @@
 package com.ndtorrent.client;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Torrent {
-	private MessageDigest sha1;
+	// Verified pieces don't stay in the write cache longer than this.
+	static final long MAX_DIRTY_AGE = (long) 5e9;
+
+	// Buffer size for reading back written-through pieces.
+	static final int READBACK_SIZE = 64 * 1024;
+
+	// Asynchronous disk operations in flight, per torrent.
+	static final int MAX_DISK_OPERATIONS = 32;
+
+	// Shared by all torrents, one worker per core.
+	private static final ForkJoinPool RECHECK_POOL = new ForkJoinPool();
 
 	private String name;
+	private String info_hash;
+	private File resume_file;
 	private int piece_length;
 	private int tail_length;
 	private long total_length;
 	private String parent_path;
 	private BTFile[] files;
+	private ExtentTable extents;
+	private StorageType storage_type = StorageType.FILE;
+	private StorageBackend storage;
+
+	// With ASYNC storage, block reads and piece writes are issued without
+	// blocking, and their completions are handed back to the Peer thread.
+	// Operations beyond the limit wait in the deferred queue.
+	private AsyncFileStorage async_storage;
+	private int disk_operations;
+	private Queue<Runnable> deferred = new ArrayDeque<Runnable>();
+	private Queue<Runnable> completions = new ConcurrentLinkedQueue<Runnable>();
+
+	// Pieces whose writes failed, handed back to the Peer thread to be
+	// downloaded again.
+	private Queue<Integer> failed_writes = new ConcurrentLinkedQueue<Integer>();
 
 	private int num_pieces;
 	private BitSet available;
 	private BitSet unregistered;
 	// private BitSet rejected
-	// private BitSet skip // pieces contained fully in skipped files
+	private BitSet skipped; // pieces contained fully in skipped files
+	private byte[] piece_priority; // Priority ordinals
 	private byte[] sha1_list;
 
 	private Map<Integer, Piece> partial = new HashMap<Integer, Piece>();
 
-	private ExecutorService reader;
-	private ExecutorService writer;
+	private boolean is_open;
 
-	public Torrent(MetaInfo meta, String storage_location) {
+	private MemoryBudget write_cache_budget;
+	private WriteCache write_cache;
 
-		try {
-			sha1 = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-		}
+	private ReadCache read_cache;
+
+	private BufferPool buffer_pool;
+	private boolean zero_copy;
+	private MemoryBudget memory_budget;
+
+	// Data reads and writes run on the disk executor, which is shared by
+	// all torrents, or are queued by the scheduler when one is set. Their
+	// number is tracked so that close() can wait for them.
+	private Executor disk_executor;
+	private DiskScheduler disk_scheduler;
+	private String device = "";
+	private AtomicInteger scheduled = new AtomicInteger();
+
+	private boolean write_through;
+
+	// Completed pieces are hashed by the pool, and then handed back to
+	// the Peer thread. Pieces that the pool refuses wait in the unverified
+	// queue. The count covers the pieces from their submission until they
+	// are handed back.
+	private HashPool hash_pool;
+	private Queue<Piece> unverified = new ArrayDeque<Piece>();
+	private Queue<Piece> verified = new ConcurrentLinkedQueue<Piece>();
+	private AtomicInteger verifying = new AtomicInteger();
+	private int bad_pieces;
+
+	// Torrent offset of the reader of a stream, or -1, and the end of the
+	// region that it reads.
+	private volatile long stream_position = -1;
+	private volatile long stream_end;
+
+	private volatile boolean closing;
+	private ForkJoinTask<Void> recheck;
+	private AtomicInteger checked_pieces = new AtomicInteger();
+
+	public Torrent(MetaInfo meta, String storage_location) {
 
 		sha1_list = meta.getPieces();
 		num_pieces = sha1_list.length / 20;
@@ -52,6 +124,9 @@ public final class Torrent {
 		unregistered.andNot(available);
 
 		name = meta.getName();
+		info_hash = meta.getInfoHash();
+		resume_file = new File(storage_location + "/.resume/"
+				+ toHex(info_hash) + ".resume");
 
 		parent_path = storage_location;
 		if (meta.areMultipleFiles()) {
@@ -70,29 +145,570 @@ public final class Torrent {
 		if (total_length != 0 && tail_length == 0)
 			tail_length = piece_length;
 
+		extents = new ExtentTable(files, piece_length);
+
+		skipped = new BitSet(num_pieces);
+		piece_priority = new byte[num_pieces];
+		updatePiecePriorities();
+
+	}
+
+	public void setStorageType(StorageType type) {
+		// Must be called before open().
+		storage_type = type;
+	}
+
+	public StorageType getStorageType() {
+		return storage_type;
+	}
+
+	public void setWriteCacheBudget(MemoryBudget budget) {
+		// Must be called before open(). The budget is shared by the write
+		// caches of all torrents. Without a budget, each verified piece is
+		// written as soon as possible.
+		write_cache_budget = budget;
+	}
+
+	public WriteCache getWriteCache() {
+		// Returns null if the cache is disabled.
+		return write_cache;
+	}
+
+	public void setReadCache(ReadCache cache) {
+		// Must be called before open(). The cache is shared by all
+		// torrents. Without a cache, each request is read separately from
+		// the disk.
+		read_cache = cache;
+	}
+
+	public ReadCache getReadCache() {
+		// Returns null if the cache is disabled.
+		return read_cache;
+	}
+
+	public void setBufferPool(BufferPool pool) {
+		// Must be called before open(). Without a pool, each piece
+		// allocates its own heap buffer.
+		buffer_pool = pool;
+	}
+
+	public int numFiles() {
+		return files.length;
+	}
+
+	public String getFileName(int index) {
+		return files[index].getName();
+	}
+
+	public Priority getFilePriority(int index) {
+		return files[index].getPriority();
+	}
+
+	public void setFilePriority(int index, Priority priority) {
+		// Pieces that are already registered are not affected.
+		files[index].setPriority(priority);
+		updatePiecePriorities();
+	}
+
+	private void updatePiecePriorities() {
+		// A piece gets the highest priority of the files it overlaps,
+		// thus it's skipped only if all of them are skipped. A file is
+		// skipped if all of its pieces are skipped.
+		Arrays.fill(piece_priority, (byte) Priority.SKIP.ordinal());
+		for (int j = 0; j < files.length; j++) {
+			if (files[j].isPadding())
+				continue;
+			byte priority = (byte) files[j].getPriority().ordinal();
+			int end = extents.getEndPiece(j);
+			for (int i = extents.getFirstPiece(j); i < end; i++) {
+				if (priority > piece_priority[i])
+					piece_priority[i] = priority;
+			}
+		}
+
+		skipped.clear();
+		for (int i = 0; i < num_pieces; i++) {
+			if (piece_priority[i] == Priority.SKIP.ordinal())
+				skipped.set(i);
+		}
+
+		for (int j = 0; j < files.length; j++) {
+			BTFile f = files[j];
+			int first = extents.getFirstPiece(j);
+			int end = extents.getEndPiece(j);
+			if (first == end || f.isPadding()) {
+				f.setSkipped(f.isPadding() || f.getPriority() == Priority.SKIP);
+				continue;
+			}
+			f.setSkipped(skipped.nextClearBit(first) >= end);
+		}
+	}
+
+	public Priority getPiecePriority(int index) {
+		return Priority.values()[piece_priority[index]];
+	}
+
+	public BitSet getSkippedPieces() {
+		return (BitSet) skipped.clone();
+	}
+
+	public void setWriteThrough(boolean write_through) {
+		// Must be called before open(). Blocks are written as soon as they
+		// arrive, so a partial piece holds no buffer; only the SHA-1 state
+		// of the blocks that arrived in order.
+		this.write_through = write_through;
+	}
+
+	public boolean isWriteThrough() {
+		return write_through;
+	}
+
+	public void setZeroCopy(boolean zero_copy) {
+		// Must be called before open(). Uploaded blocks of pieces that are
+		// on disk are transferred from the files to the sockets, without
+		// being read into memory. Applies only to FILE storage.
+		this.zero_copy = zero_copy;
+	}
+
+	public void setMemoryBudget(MemoryBudget budget) {
+		// Must be called before open(). Pieces aren't registered while the
+		// budget is exceeded.
+		memory_budget = budget;
+	}
+
+	public boolean isMemoryExceeded() {
+		return memory_budget != null && memory_budget.isExceeded();
+	}
+
+	public boolean isWriteBacklogExceeded() {
+		return memory_budget != null && memory_budget.isBacklogExceeded();
+	}
+
+	public void setDiskExecutor(Executor executor) {
+		// Must be called before open().
+		disk_executor = executor;
+	}
+
+	public void setDiskScheduler(DiskScheduler scheduler) {
+		// Must be called before open(). Takes the place of the executor.
+		disk_scheduler = scheduler;
+	}
+
+	public void setHashPool(HashPool pool) {
+		// Without a pool, pieces are hashed by the Peer thread.
+		hash_pool = pool;
 	}
 
 	public void open() throws IOException {
-		for (BTFile f : files) {
-			f.createFileAndPath(parent_path);
+		if (disk_executor == null && disk_scheduler == null)
+			throw new IllegalStateException("no disk executor");
+
+		switch (storage_type) {
+		case MAPPED:
+			storage = new MappedStorage(files, parent_path, extents);
+			break;
+		case MEMORY:
+			storage = new MemoryStorage(total_length);
+			break;
+		case ASYNC:
+			async_storage = new AsyncFileStorage(files, parent_path, extents);
+			storage = async_storage;
+			break;
+		default:
+			storage = new FileStorage(files, parent_path, extents);
 		}
 
-		reader = Executors.newSingleThreadExecutor();
-		writer = Executors.newSingleThreadExecutor();
+		// The recorded file priorities apply before the files are opened,
+		// so that skipped files stay uncreated.
+		ResumeData resume = null;
+		if (storage.isPersistent()) {
+			resume = ResumeData.load(resume_file);
+			if (resume != null && info_hash.equals(resume.getInfoHash())
+					&& resume.restorePriorities(files))
+				updatePiecePriorities();
+		}
+		boolean existing_data = storage.open();
+
+		if (disk_scheduler != null && storage.isPersistent()) {
+			try {
+				device = Files.getFileStore(new File(parent_path).toPath())
+						.name();
+			} catch (IOException e) {
+				// All operations of unknown devices are ordered together.
+			}
+		}
+
+		// Data that was not recorded by the fast-resume has to be verified.
+		if (!loadResumeData(resume) && existing_data)
+			startRecheck();
+		else
+			checkPaddingPieces();
+
+		if (write_cache_budget != null)
+			write_cache = new WriteCache(write_cache_budget, MAX_DIRTY_AGE);
+
+		is_open = true;
 	}
 
 	public void close() {
-		if (reader != null)
-			reader.shutdownNow();
+		closing = true;
+		synchronized (available) {
+			// Wakes up the streams that wait for pieces.
+			available.notifyAll();
+		}
+		// A recheck that is still running stops early, and its result is
+		// incomplete.
+		boolean interrupted = recheck != null && !recheck.isDone();
+		if (recheck != null)
+			recheck.quietlyJoin();
 
-		if (writer != null)
-			writer.shutdownNow();
+		// Pieces that are being verified are stored, if valid, before the
+		// files are closed.
+		finishVerifications();
 
-		for (BTFile f : files) {
-			f.close();
+		// Pending piece writes must complete before the files are closed.
+		while (disk_operations > 0 || !deferred.isEmpty()) {
+			processDiskCompletions();
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				break;
+			}
+		}
+
+		ResumeData resume = null;
+		if (is_open) {
+			if (write_cache != null)
+				submitFlush();
+			// Queued reads and writes must complete before the files are
+			// closed.
+			try {
+				synchronized (scheduled) {
+					while (scheduled.get() > 0)
+						scheduled.wait();
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			// The last writes of written-through pieces submit their
+			// verifications, which don't write.
+			finishVerifications();
+			// An interrupted recheck leaves the record as it is.
+			if (!interrupted && storage.isPersistent()) {
+				resume = createResumeData();
+				savePartialPieces(resume);
+			}
+		}
+
+		if (read_cache != null)
+			read_cache.clear(this);
+
+		for (Piece piece : partial.values()) {
+			releasePiece(piece);
+		}
+
+		if (storage != null) {
+			if (resume != null && !flushStorage())
+				resume = null;
+			storage.close();
+		}
+
+		// The modification times are final only after the files are closed.
+		if (resume != null)
+			writeResumeData(resume);
+	}
+
+	private boolean loadResumeData(ResumeData data) {
+		// Returns true if the verified pieces were restored from the
+		// fast-resume record, which is valid only if no file has changed
+		// since the record was written.
+		if (data == null)
+			return false;
+		if (!info_hash.equals(data.getInfoHash())
+				|| data.getPieceLength() != piece_length
+				|| data.numPieces() != (num_pieces + 7) / 8 * 8
+				|| !data.matchesFiles(files))
+			return false;
+
+		available = data.getAvailablePieces();
+		available.clear(num_pieces, Math.max(num_pieces, available.length()));
+		unregistered.set(0, num_pieces);
+		unregistered.andNot(available);
+
+		for (Map.Entry<Integer, BitSet> entry : data.getPartialPieces()
+				.entrySet()) {
+			restorePartialPiece(entry.getKey(), entry.getValue());
+		}
+		return true;
+	}
+
+	private void restorePartialPiece(int index, BitSet blocks) {
+		// The received blocks of the piece are in place in the files.
+		// They are loaded into the piece buffer, or, if the blocks are
+		// written through, they are just marked as received. Blocks that
+		// can't be read are requested again.
+		if (index < 0 || index >= num_pieces || !unregistered.get(index)
+				|| skipped.get(index) || blocks.isEmpty())
+			return;
+		Piece piece = registerPiece(index);
+		if (piece == null)
+			return;
+
+		blocks = (BitSet) blocks.clone();
+		blocks.clear(piece.numBlocks(), Math.max(piece.numBlocks(),
+				blocks.length()));
+		ByteBuffer data = piece.getData();
+		if (data != null) {
+			long piece_offset = (long) index * piece_length;
+			int start = blocks.nextSetBit(0);
+			while (start >= 0) {
+				int end = blocks.nextClearBit(start);
+				ByteBuffer dst = data.duplicate();
+				dst.limit(piece.getBlockOffset(end - 1)
+						+ piece.getBlockLength(end - 1));
+				dst.position(piece.getBlockOffset(start));
+				if (!read(piece_offset + dst.position(), dst))
+					blocks.clear(start, end);
+				start = blocks.nextSetBit(end);
+			}
+		}
+		piece.restoreBlocks(blocks);
+
+		if (piece.isComplete()) {
+			partial.remove(index);
+			if (data != null)
+				addBacklog(piece);
+			if (data != null || piece.endWrite())
+				submitVerification(piece);
+		}
+	}
+
+	private void savePartialPieces(ResumeData resume) {
+		// Writes the received blocks of the buffered partial pieces in
+		// place, so that the pieces can be rebuilt on the next open.
+		for (Piece piece : partial.values()) {
+			ByteBuffer data = piece.getData();
+			if (data == null)
+				continue;
+			long piece_offset = (long) piece.getIndex() * piece_length;
+			BitSet blocks = piece.getAvailableBlocks();
+			boolean saved = true;
+			int start = blocks.nextSetBit(0);
+			while (saved && start >= 0) {
+				int end = blocks.nextClearBit(start);
+				ByteBuffer src = data.duplicate();
+				src.limit(piece.getBlockOffset(end - 1)
+						+ piece.getBlockLength(end - 1));
+				src.position(piece.getBlockOffset(start));
+				saved = write(piece_offset + src.position(),
+						new ByteBuffer[] { src });
+				start = blocks.nextSetBit(end);
+			}
+			if (saved && !blocks.isEmpty())
+				resume.addPartialPiece(piece.getIndex(), blocks);
 		}
 	}
 
+	private ResumeData createResumeData() {
+		// Pieces that are still in the write cache aren't on disk yet.
+		BitSet stored = (BitSet) available.clone();
+		if (write_cache != null) {
+			int start_bit = stored.nextSetBit(0);
+			for (int i = start_bit; i >= 0; i = stored.nextSetBit(i + 1)) {
+				if (write_cache.contains(i))
+					stored.clear(i);
+			}
+		}
+		ResumeData data = new ResumeData(info_hash, piece_length, num_pieces,
+				stored);
+		// Only the partial pieces that are written through have their
+		// blocks on disk, once their writes have completed. The blocks of
+		// the others are saved on close().
+		for (Piece piece : partial.values()) {
+			if (piece.getData() != null || piece.isWriteError())
+				continue;
+			BitSet written = piece.getWrittenBlocks();
+			if (!written.isEmpty())
+				data.addPartialPiece(piece.getIndex(), written);
+		}
+		return data;
+	}
+
+	public void saveResumeData() {
+		// The record is written by a disk thread. It claims only data whose
+		// writes have completed; the writes that are queued may still run
+		// in any order.
+		if (isChecking() || !storage.isPersistent())
+			return;
+		final ResumeData data = createResumeData();
+		submitDiskTask(total_length, new Runnable() {
+			@Override
+			public void run() {
+				if (flushStorage())
+					writeResumeData(data);
+			}
+		});
+	}
+
+	private boolean flushStorage() {
+		// The data must reach the disk before a record that claims it.
+		try {
+			storage.flush();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private void writeResumeData(ResumeData data) {
+		data.setFiles(files);
+		try {
+			data.save(resume_file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String toHex(String binary) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < binary.length(); i++) {
+			builder.append(String.format("%02x", (int) binary.charAt(i)));
+		}
+		return builder.toString();
+	}
+
+	private void checkPaddingPieces() {
+		// Pieces that lie entirely in pad files are zeros, so they are
+		// verified without being downloaded or read.
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			return;
+		}
+		byte[] zeros = null;
+		int start_bit = unregistered.nextSetBit(0);
+		for (int i = start_bit; i >= 0; i = unregistered.nextSetBit(i + 1)) {
+			if (!isPaddingPiece(i))
+				continue;
+			if (zeros == null)
+				zeros = new byte[piece_length];
+			sha1.update(zeros, 0, getPieceLength(i));
+			if (hasPieceHash(i, sha1.digest())) {
+				setAvailable(i);
+				unregistered.clear(i);
+			}
+		}
+	}
+
+	private boolean isPaddingPiece(int index) {
+		int end = extents.firstExtent(index + 1);
+		for (int e = extents.firstExtent(index); e < end; e++) {
+			if (!files[extents.getFile(e)].isPadding())
+				return false;
+		}
+		return true;
+	}
+
+	public void startRecheck() {
+		// Verifies the data on disk, in background, and marks the valid
+		// pieces as available. It must not be called while pieces are
+		// registered; the Peer doesn't register pieces while checking.
+		if (isChecking())
+			return;
+		synchronized (available) {
+			available.clear();
+		}
+		checked_pieces.set(0);
+		recheck = RECHECK_POOL.submit(new RecheckTask(this, 0, num_pieces));
+	}
+
+	public boolean isChecking() {
+		// When the recheck has finished, the pieces that failed are
+		// unregistered on the calling thread.
+		if (recheck == null)
+			return false;
+		if (!recheck.isDone())
+			return true;
+		recheck = null;
+		unregistered.set(0, num_pieces);
+		unregistered.andNot(available);
+		return false;
+	}
+
+	public int numCheckedPieces() {
+		return checked_pieces.get();
+	}
+
+	boolean isClosing() {
+		return closing;
+	}
+
+	void onPieceChecked(int index, boolean valid) {
+		// Called by the recheck workers.
+		if (valid) {
+			setAvailable(index);
+		}
+		checked_pieces.incrementAndGet();
+	}
+
+	private void setAvailable(int index) {
+		synchronized (available) {
+			available.set(index);
+			available.notifyAll();
+		}
+	}
+
+	private void clearAvailable(int index) {
+		synchronized (available) {
+			available.clear(index);
+		}
+	}
+
+	public boolean hasPiece(int index) {
+		return available.get(index);
+	}
+
+	boolean waitForPiece(int index, long timeout) throws InterruptedException {
+		// Blocks until the piece becomes available, the timeout (ms)
+		// expires, or the torrent closes.
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (available) {
+			while (!available.get(index) && !closing) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				available.wait(remaining);
+			}
+			return available.get(index);
+		}
+	}
+
+	public InputStream newInputStream(int file_index) {
+		// The stream reads the file as its pieces become available. While
+		// reading, the Peer requests the pieces ahead of the stream first.
+		BTFile f = files[file_index];
+		return new TorrentInputStream(this, f.getOffset(), f.getLength());
+	}
+
+	public long getStreamPosition() {
+		// Returns -1 if no stream is reading.
+		return stream_position;
+	}
+
+	public long getStreamEnd() {
+		// Torrent offset where the region of the stream ends.
+		return stream_end;
+	}
+
+	void setStreamPosition(long position, long end) {
+		// Only the stream that read last is followed.
+		stream_end = end;
+		stream_position = position;
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -102,8 +718,9 @@ public final class Torrent {
 	}
 
 	public long getRemainingLength() {
+		// Skipped pieces that we don't have are not counted.
 		int registered = num_pieces - unregistered.cardinality();
-		long length = registered * piece_length;
+		long length = (long) registered * piece_length;
 
 		if (!unregistered.get(num_pieces - 1))
 			length -= piece_length - tail_length;
@@ -112,6 +729,12 @@ public final class Torrent {
 			length -= piece.getRemainingLength();
 		}
 
+		BitSet not_wanted = (BitSet) unregistered.clone();
+		not_wanted.and(skipped);
+		length += (long) not_wanted.cardinality() * piece_length;
+		if (not_wanted.get(num_pieces - 1))
+			length -= piece_length - tail_length;
+
 		return total_length - length;
 	}
 
@@ -134,97 +757,504 @@ public final class Torrent {
 	}
 
 	public BitSet getAvailablePieces() {
-		return (BitSet) available.clone();
+		synchronized (available) {
+			return (BitSet) available.clone();
+		}
+	}
+
+	public int getPieceLength() {
+		return piece_length;
 	}
 
 	public Collection<Piece> getPartialPieces() {
 		return partial.values();
 	}
 
+	public Piece getPartialPiece(int index) {
+		// Returns null if the piece isn't registered or has completed.
+		return partial.get(index);
+	}
+
 	public boolean hasUnregisteredPieces() {
 		return !unregistered.isEmpty();
 	}
 
+	public boolean hasWantedPieces() {
+		// Unregistered pieces that are not skipped.
+		BitSet wanted = (BitSet) unregistered.clone();
+		wanted.andNot(skipped);
+		return !wanted.isEmpty();
+	}
+
+	public BitSet getWantedPieces() {
+		BitSet wanted = (BitSet) unregistered.clone();
+		wanted.andNot(skipped);
+		return wanted;
+	}
+
 	public Piece registerPiece(int index) {
+		// Returns null if the piece is already registered, or if it's
+		// skipped, or if the buffer pool is full, or if the memory budget
+		// is exceeded.
 		if (index < 0 || index >= num_pieces)
 			throw new IndexOutOfBoundsException("index: " + index);
-		if (!unregistered.get(index)) {
+		if (!unregistered.get(index) || skipped.get(index)) {
 			return null;
 		}
 
-		int length = (index + 1) * piece_length <= total_length ? piece_length
-				: (int) (total_length % piece_length);
+		int length = getPieceLength(index);
+		if (!write_through && memory_budget != null
+				&& !memory_budget.reserve(length))
+			return null;
 
-		Piece piece = new Piece(index, length);
+		Piece piece;
+		if (write_through) {
+			piece = new Piece(index, length, (ByteBuffer) null);
+		} else if (buffer_pool != null) {
+			ByteBuffer data = buffer_pool.allocate(length);
+			if (data == null) {
+				if (memory_budget != null)
+					memory_budget.release(length);
+				return null;
+			}
+			piece = new Piece(index, length, data);
+		} else {
+			piece = new Piece(index, length);
+		}
 		partial.put(index, piece);
 		unregistered.flip(index);
 		return piece;
 	}
 
+	int getPieceLength(int index) {
+		return index + 1 < num_pieces ? piece_length : tail_length;
+	}
+
+	private void addBacklog(Piece piece) {
+		// A buffered piece that completes waits only for the disk.
+		if (memory_budget != null)
+			memory_budget.addBacklog(piece.getLength());
+	}
+
+	private void releasePiece(Piece piece) {
+		// Returns the buffer of a flushed or rejected piece to the pool,
+		// and its length to the memory budget.
+		ByteBuffer data = piece.releaseData();
+		if (data == null)
+			return;
+		if (buffer_pool != null)
+			buffer_pool.release(data);
+		if (memory_budget != null) {
+			memory_budget.release(piece.getLength());
+			if (piece.isComplete())
+				memory_budget.removeBacklog(piece.getLength());
+		}
+	}
+
 	public BitSet getUnregistered() {
 		return (BitSet) unregistered.clone();
 	}
 
-	private boolean validHash(Piece piece) {
-		ByteBuffer data = piece.getData();
-		data.rewind();
-		this.sha1.update(data);
-		ByteBuffer sha1 = ByteBuffer.wrap(sha1_list, piece.getIndex() * 20, 20);
-		return sha1.equals(ByteBuffer.wrap(this.sha1.digest()));
+	boolean hasPieceHash(int index, byte[] digest) {
+		ByteBuffer sha1 = ByteBuffer.wrap(sha1_list, index * 20, 20);
+		return sha1.equals(ByteBuffer.wrap(digest));
 	}
 
-	public void saveBlock(Message block) {
+	public void saveBlock(int index, int begin, ByteBuffer payload) {
 		// The corresponding piece must be registered and in partial state,
-		// otherwise the block will be discarded.
-		final int index = block.getPieceIndex();
+		// otherwise the block will be discarded. The payload is copied
+		// before returning, so it can be a view of a receive buffer.
 		final Piece piece = partial.get(index);
 		if (piece == null)
 			return;
 
-		piece.write(block);
+		if (write_through) {
+			writeBlockThrough(piece, begin, payload);
+			return;
+		}
+
+		piece.write(begin, payload);
 
 		if (piece.isComplete()) {
 			partial.remove(index);
+			addBacklog(piece);
+			submitVerification(piece);
+		}
+	}
+
+	private void storePiece(final Piece piece) {
+		final int index = piece.getIndex();
+		if (async_storage != null && write_cache == null) {
+			storePieceAsync(piece);
+			return;
+		}
+		if (write_cache != null) {
+			// Cached pieces are served to other peers from memory
+			// until they are flushed.
+			write_cache.add(piece);
+			setAvailable(index);
+			if (write_cache.isFull())
+				submitFlush();
+			return;
+		}
+
+		submitDiskTask((long) index * piece_length, new Runnable() {
+			@Override
+			public void run() {
+				boolean saved = savePiece(piece);
+				releasePiece(piece);
+				if (!saved) {
+					failed_writes.add(index);
+					return;
+				}
+
+				setAvailable(index);
+			}
+		});
+	}
+
+	private void storePieceAsync(final Piece piece) {
+		final long offset = (long) piece.getIndex() * piece_length;
+		submitDiskOperation(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer data = piece.getData();
+				data.rewind();
+				async_storage.write(offset, data, piece,
+						new CompletionHandler<Long, Piece>() {
+							@Override
+							public void completed(Long n, Piece piece) {
+								complete(piece, true);
+							}
 
-			if (!validHash(piece)) {
-				unregistered.set(piece.getIndex());
-				System.out.println("Bad hash: " + piece.getIndex());
-				return;
+							@Override
+							public void failed(Throwable exc, Piece piece) {
+								exc.printStackTrace();
+								complete(piece, false);
+							}
+						});
 			}
 
-			writer.submit(new Runnable() {
-				@Override
-				public void run() {
-					if (!savePiece(piece)) {
-						// error
-						return;
+			private void complete(final Piece piece, final boolean saved) {
+				completions.add(new Runnable() {
+					@Override
+					public void run() {
+						releasePiece(piece);
+						if (!saved) {
+							unregistered.set(piece.getIndex());
+							return;
+						}
+						setAvailable(piece.getIndex());
 					}
+				});
+			}
+		});
+	}
 
-					available.set(index, true);
+	private void submitDiskTask(long offset, final Runnable task) {
+		// The offset is the torrent offset that the task starts at.
+		scheduled.incrementAndGet();
+		Runnable counted = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					if (scheduled.decrementAndGet() == 0) {
+						synchronized (scheduled) {
+							scheduled.notifyAll();
+						}
+					}
 				}
-			});
+			}
+		};
+		if (disk_scheduler != null)
+			disk_scheduler.submit(device, parent_path, offset, counted);
+		else
+			disk_executor.execute(counted);
+	}
+
+	private void submitDiskOperation(Runnable operation) {
+		// Called by the Peer thread.
+		if (disk_operations < MAX_DISK_OPERATIONS) {
+			disk_operations++;
+			operation.run();
+		} else {
+			deferred.add(operation);
 		}
 	}
 
-	private boolean savePiece(Piece piece) {
-		ByteBuffer data = piece.getData();
-		data.rewind();
-		long piece_offset = piece.getIndex() * piece_length;
-		int start = Arrays.binarySearch(files, Long.valueOf(piece_offset));
-		start = Math.max(start, (-start - 1) - 1);
-		for (int i = start; i < files.length; i++) {
-			BTFile f = files[i];
-			try {
-				f.write(data, i > start ? 0 : piece_offset - f.getOffset());
-				if (!data.hasRemaining()) {
-					return true;
+	public BitSet processDiskCompletions() {
+		// Called by the Peer thread. Runs the completion handlers and
+		// issues deferred operations in place of the completed ones.
+		// Returns the pieces whose writes failed; they are downloaded
+		// again. The HAVEs that were sent for them can't be taken back.
+		BitSet lost = new BitSet();
+		Integer index;
+		while ((index = failed_writes.poll()) != null) {
+			unregistered.set(index);
+			lost.set(index);
+		}
+
+		Runnable completion;
+		while ((completion = completions.poll()) != null) {
+			disk_operations--;
+			completion.run();
+		}
+		while (disk_operations < MAX_DISK_OPERATIONS && !deferred.isEmpty()) {
+			disk_operations++;
+			deferred.poll().run();
+		}
+		return lost;
+	}
+
+	public int numDiskOperations() {
+		// In flight, deferred excluded.
+		return disk_operations;
+	}
+
+	private void writeBlockThrough(final Piece piece, final int begin,
+			ByteBuffer payload) {
+		// The block is copied to a pooled direct buffer, if possible, that
+		// is released after the write.
+		if (!piece.write(begin, payload))
+			return;
+
+		final int length = payload.remaining();
+		final ByteBuffer pooled = buffer_pool != null ? buffer_pool
+				.allocate(length) : null;
+		final ByteBuffer copy = pooled != null ? pooled : ByteBuffer
+				.allocate(length);
+		copy.put(payload.duplicate());
+		copy.flip();
+		piece.updateDigest(begin, copy.duplicate());
+
+		final long offset = (long) piece.getIndex() * piece_length + begin;
+		piece.beginWrite();
+		if (memory_budget != null) {
+			memory_budget.forceReserve(length);
+			memory_budget.addBacklog(length);
+		}
+		submitDiskTask(offset, new Runnable() {
+			@Override
+			public void run() {
+				if (write(offset, new ByteBuffer[] { copy.duplicate() }))
+					piece.setBlocksWritten(begin, length);
+				else
+					piece.setWriteError();
+				if (pooled != null)
+					buffer_pool.release(pooled);
+				if (memory_budget != null) {
+					memory_budget.release(length);
+					memory_budget.removeBacklog(length);
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
+				if (piece.endWrite())
+					submitVerification(piece);
+			}
+		});
+
+		if (piece.isComplete()) {
+			partial.remove(piece.getIndex());
+			if (piece.endWrite())
+				submitVerification(piece);
+		}
+	}
+
+	private void submitVerification(Piece piece) {
+		// Called by the Peer thread, or by a disk thread after the last
+		// write of a piece that is written through.
+		verifying.incrementAndGet();
+		if (hash_pool == null) {
+			verifyPiece(piece);
+			return;
+		}
+		synchronized (unverified) {
+			unverified.add(piece);
+		}
+		submitUnverifiedPieces();
+	}
+
+	private void submitUnverifiedPieces() {
+		// Stops at the first piece that the pool refuses, which is
+		// submitted again by processVerifiedPieces().
+		synchronized (unverified) {
+			while (!unverified.isEmpty()) {
+				final Piece piece = unverified.peek();
+				Runnable task = new Runnable() {
+					@Override
+					public void run() {
+						verifyPiece(piece);
+					}
+				};
+				long nbytes = piece.getLength() - piece.getHashedLength();
+				if (!hash_pool.submit(task, nbytes))
+					return;
+				unverified.poll();
+			}
+		}
+	}
+
+	private void finishVerifications() {
+		// Called by close(). The pieces that the pool hasn't taken are
+		// hashed by the calling thread. Then the pieces in progress are
+		// awaited, and all of them are handed back.
+		while (true) {
+			Piece piece;
+			synchronized (unverified) {
+				piece = unverified.poll();
+			}
+			if (piece == null)
 				break;
+			verifyPiece(piece);
+		}
+		try {
+			synchronized (verifying) {
+				while (verifying.get() > 0)
+					verifying.wait();
 			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
-		return false;
+		processVerifiedPieces();
+	}
+
+	private void verifyPiece(Piece piece) {
+		// Runs on the hash pool. A written-through piece is verified after
+		// its last write; the blocks that didn't arrive in order are read
+		// back and hashed.
+		MessageDigest digest = piece.getDigest();
+		boolean valid = !piece.isWriteError();
+		int length = piece.getLength();
+		if (piece.getData() != null) {
+			ByteBuffer data = piece.getData().duplicate();
+			data.rewind();
+			digest.update(data);
+		} else {
+			long piece_offset = (long) piece.getIndex() * piece_length;
+			ByteBuffer buffer = ByteBuffer.allocate(Math.min(READBACK_SIZE,
+					length));
+			int position = piece.getHashedLength();
+			while (valid && position < length) {
+				buffer.clear();
+				buffer.limit(Math.min(buffer.capacity(), length - position));
+				valid = read(piece_offset + position, buffer);
+				buffer.flip();
+				position += buffer.remaining();
+				digest.update(buffer);
+			}
+		}
+		piece.setValid(valid && hasPieceHash(piece.getIndex(), digest.digest()));
+		verified.add(piece);
+		if (verifying.decrementAndGet() == 0) {
+			synchronized (verifying) {
+				verifying.notifyAll();
+			}
+		}
+	}
+
+	public int numBadPieces() {
+		// Pieces that failed the verification, and were downloaded again.
+		return bad_pieces;
+	}
+
+	public void processVerifiedPieces() {
+		// Called by the Peer thread.
+		if (hash_pool != null)
+			submitUnverifiedPieces();
+		Piece piece;
+		while ((piece = verified.poll()) != null) {
+			int index = piece.getIndex();
+			if (!piece.isValid()) {
+				unregistered.set(index);
+				bad_pieces++;
+				releasePiece(piece);
+			} else if (write_through) {
+				setAvailable(index);
+			} else {
+				storePiece(piece);
+			}
+		}
+	}
+
+	public void flushWriteCache() {
+		// Flushes the cache if it holds pieces for too long, or if the
+		// memory budget is exceeded.
+		if (write_cache != null
+				&& (write_cache.isExpired() || isMemoryExceeded()))
+			submitFlush();
+	}
+
+	private void submitFlush() {
+		final List<Piece> pieces = write_cache.beginFlush();
+		if (pieces.isEmpty())
+			return;
+
+		long offset = (long) pieces.get(0).getIndex() * piece_length;
+		submitDiskTask(offset, new Runnable() {
+			@Override
+			public void run() {
+				flushPieces(pieces);
+			}
+		});
+	}
+
+	private void flushPieces(List<Piece> pieces) {
+		// The pieces are sorted by index. Each run of consecutive pieces
+		// is written with one vectored write.
+		int nwrites = 0;
+		int start = 0;
+		while (start < pieces.size()) {
+			int end = start + 1;
+			while (end < pieces.size()
+					&& pieces.get(end).getIndex() == pieces.get(end - 1)
+							.getIndex() + 1) {
+				end++;
+			}
+			ByteBuffer[] run = new ByteBuffer[end - start];
+			for (int i = 0; i < run.length; i++) {
+				run[i] = pieces.get(start + i).getData();
+				run[i].rewind();
+			}
+			long offset = (long) pieces.get(start).getIndex() * piece_length;
+			if (!write(offset, run)) {
+				for (int i = start; i < end; i++) {
+					clearAvailable(pieces.get(i).getIndex());
+					failed_writes.add(pieces.get(i).getIndex());
+				}
+			}
+			nwrites++;
+			start = end;
+		}
+		write_cache.endFlush(pieces, nwrites);
+		for (Piece piece : pieces) {
+			releasePiece(piece);
+		}
+	}
+
+	private boolean savePiece(Piece piece) {
+		ByteBuffer data = piece.getData();
+		data.rewind();
+		long piece_offset = (long) piece.getIndex() * piece_length;
+		return write(piece_offset, new ByteBuffer[] { data });
+	}
+
+	private boolean write(long offset, ByteBuffer[] srcs) {
+		// Writes the buffers starting at the given torrent offset.
+		try {
+			storage.write(offset, srcs);
+			return !srcs[srcs.length - 1].hasRemaining();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private boolean isZeroCopy(int index) {
+		// The read cache, if any, is bypassed by zero-copy blocks. Only
+		// plain files are transferred; mapped and asynchronous storage keep
+		// their own read paths.
+		return zero_copy && storage_type == StorageType.FILE
+				&& (write_cache == null || !write_cache.contains(index));
 	}
 
 	public Message loadBlock(Message request) {
@@ -234,43 +1264,294 @@ public final class Torrent {
 		if (!available.get(index))
 			return null;
 
+		// Blocks of pieces that are on disk are sent directly from the
+		// files. The transfer happens on the Peer thread, when the socket
+		// is writable.
+		if (isZeroCopy(index)) {
+			long offset = (long) index * piece_length
+					+ request.getBlockBegin();
+			FileRegion region = ((FileStorage) storage).getRegion(offset,
+					request.getBlockLength());
+			if (region != null)
+				return Message.newBlock(index, request.getBlockBegin(),
+						region);
+		}
+
 		final Message block = Message.newBlock(index, request.getBlockBegin(),
 				request.getBlockLength());
 
 		block.setPreparedStatus(false);
 
-		reader.submit(new Runnable() {
+		if (async_storage != null) {
+			loadBlockAsync(index, block);
+			return block;
+		}
+
+		long offset = (long) index * piece_length + request.getBlockBegin();
+		submitDiskTask(offset, new Runnable() {
 			@Override
 			public void run() {
-				readBlock(index, block);
-				block.setPreparedStatus(true);
+				// A block that can't be read is not sent.
+				if (readBlock(index, block))
+					block.setPreparedStatus(true);
+				else
+					block.drop();
 			}
 		});
 
 		return block;
 	}
 
-	private boolean readBlock(int index, Message block) {
-		// Buffer's remaining length is expected to match block's length.
-		ByteBuffer data = block.getData();
-		long piece_offset = index * piece_length;
-		int start = Arrays.binarySearch(files, Long.valueOf(piece_offset));
-		start = Math.max(start, (-start - 1) - 1);
-		int block_begin = block.getBlockBegin();
-		for (int i = start; i < files.length; i++) {
-			BTFile f = files[i];
-			try {
-				long ofs = index * piece_length + block_begin - f.getOffset();
-				f.read(data, ofs < 0 ? 0 : ofs);
-				if (!data.hasRemaining()) {
-					return true;
+	public List<Message> loadBlocks(List<Message> requests) {
+		// The requests are for consecutive regions of the same piece. When
+		// the blocks have to be read into memory, they are filled by one
+		// scattering read instead of one read per block.
+		final int index = requests.get(0).getPieceIndex();
+		boolean cached = (write_cache != null && write_cache.contains(index))
+				|| (read_cache != null && read_cache.contains(this, index));
+		if (requests.size() == 1 || isZeroCopy(index)
+				|| (async_storage != null && cached)) {
+			// Loaded separately; zero-copy blocks and blocks of pieces
+			// that are in memory need no disk reads of their own.
+			List<Message> blocks = new ArrayList<Message>(requests.size());
+			for (Message request : requests) {
+				Message block = loadBlock(request);
+				if (block != null)
+					blocks.add(block);
+			}
+			return blocks;
+		}
+
+		if (!available.get(index))
+			return Collections.emptyList();
+
+		final List<Message> blocks = new ArrayList<Message>(requests.size());
+		for (Message request : requests) {
+			Message block = Message.newBlock(index, request.getBlockBegin(),
+					request.getBlockLength());
+			block.setPreparedStatus(false);
+			blocks.add(block);
+		}
+
+		long offset = (long) index * piece_length
+				+ requests.get(0).getBlockBegin();
+		if (async_storage != null) {
+			loadBlocksAsync(index, blocks);
+			return blocks;
+		}
+
+		submitDiskTask(offset, new Runnable() {
+			@Override
+			public void run() {
+				boolean valid = readBlocks(index, blocks);
+				for (Message block : blocks) {
+					if (valid)
+						block.setPreparedStatus(true);
+					else
+						block.drop();
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				break;
+			}
+		});
+
+		return blocks;
+	}
+
+	private void loadBlocksAsync(final int index, final List<Message> blocks) {
+		// One read, which is then sliced into the blocks. It covers the
+		// whole piece if the piece fits in the read cache, where it is
+		// kept, as in loadBlockAsync(); otherwise just the blocks.
+		final boolean whole = isReadCached(index);
+		final int begin = whole ? 0 : blocks.get(0).getBlockBegin();
+		int length = whole ? getPieceLength(index) : 0;
+		if (!whole) {
+			for (Message block : blocks) {
+				length += block.getBlockLength();
 			}
 		}
-		return false;
+		final long offset = (long) index * piece_length + begin;
+		final ByteBuffer dst = ByteBuffer.allocate(length);
+
+		submitDiskOperation(new Runnable() {
+			@Override
+			public void run() {
+				async_storage.read(offset, dst, null,
+						new CompletionHandler<Long, Void>() {
+							@Override
+							public void completed(Long n, Void attachment) {
+								complete(true);
+							}
+
+							@Override
+							public void failed(Throwable exc, Void attachment) {
+								exc.printStackTrace();
+								complete(false);
+							}
+						});
+			}
+
+			private void complete(final boolean valid) {
+				completions.add(new Runnable() {
+					@Override
+					public void run() {
+						dst.flip();
+						if (valid && whole)
+							read_cache.put(Torrent.this, index, dst);
+						for (Message block : blocks) {
+							if (!valid) {
+								block.drop();
+								continue;
+							}
+							ByteBuffer data = block.getData();
+							ByteBuffer src = dst.duplicate();
+							src.position(block.getBlockBegin() - begin);
+							src.limit(src.position() + data.remaining());
+							data.put(src);
+							block.setPreparedStatus(true);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private boolean readBlocks(int index, List<Message> blocks) {
+		// Pieces that fit in the read cache are copied block by block; a
+		// miss loads the whole piece once, and the blocks that follow are
+		// hits. Otherwise the storage scatters one read into the blocks.
+		if ((write_cache != null && write_cache.contains(index))
+				|| isReadCached(index)) {
+			boolean valid = true;
+			for (Message block : blocks) {
+				valid &= readBlock(index, block);
+			}
+			return valid;
+		}
+
+		ByteBuffer[] dsts = new ByteBuffer[blocks.size()];
+		for (int i = 0; i < dsts.length; i++) {
+			dsts[i] = blocks.get(i).getData();
+		}
+		long offset = (long) index * piece_length
+				+ blocks.get(0).getBlockBegin();
+		try {
+			storage.read(offset, dsts);
+			return !dsts[dsts.length - 1].hasRemaining();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private void loadBlockAsync(final int index, final Message block) {
+		// Cache hits are served immediately. On a read cache miss the
+		// whole piece is loaded, as in readBlock().
+		final ByteBuffer data = block.getData();
+		final int block_begin = block.getBlockBegin();
+		if ((write_cache != null && write_cache.read(index, block_begin, data))
+				|| (read_cache != null && read_cache.read(this, index,
+						block_begin, data))) {
+			block.setPreparedStatus(true);
+			return;
+		}
+
+		final ByteBuffer dst;
+		final long offset;
+		if (isReadCached(index)) {
+			dst = ByteBuffer.allocate(getPieceLength(index));
+			offset = (long) index * piece_length;
+		} else {
+			dst = data;
+			offset = (long) index * piece_length + block_begin;
+		}
+
+		submitDiskOperation(new Runnable() {
+			@Override
+			public void run() {
+				async_storage.read(offset, dst, block,
+						new CompletionHandler<Long, Message>() {
+							@Override
+							public void completed(Long n, Message block) {
+								complete(true);
+							}
+
+							@Override
+							public void failed(Throwable exc, Message block) {
+								exc.printStackTrace();
+								complete(false);
+							}
+						});
+			}
+
+			private void complete(final boolean valid) {
+				completions.add(new Runnable() {
+					@Override
+					public void run() {
+						if (!valid) {
+							block.drop();
+							return;
+						}
+						if (dst != data) {
+							dst.flip();
+							read_cache.put(Torrent.this, index, dst);
+							ByteBuffer src = dst.duplicate();
+							src.limit(block_begin + data.remaining());
+							src.position(block_begin);
+							data.put(src);
+						}
+						block.setPreparedStatus(true);
+					}
+				});
+			}
+		});
+	}
+
+	private boolean isReadCached(int index) {
+		// Pieces larger than the read cache are never loaded whole; each
+		// request reads only its block.
+		return read_cache != null
+				&& getPieceLength(index) <= read_cache.getCapacity();
+	}
+
+	private boolean readBlock(int index, Message block) {
+		// Buffer's remaining length is expected to match block's length.
+		return read(index, block.getBlockBegin(), block.getData());
+	}
+
+	boolean read(int index, int block_begin, ByteBuffer data) {
+		// Fills the remaining bytes of the buffer with the data of an
+		// available piece, starting at the given piece offset.
+		if (write_cache != null && write_cache.read(index, block_begin, data))
+			return true;
+
+		if (isReadCached(index)) {
+			if (read_cache.read(this, index, block_begin, data))
+				return true;
+			// On a miss the whole piece is loaded once; the requests
+			// that follow for the same piece are served from memory.
+			ByteBuffer piece_data = ByteBuffer.allocate(getPieceLength(index));
+			if (!read((long) index * piece_length, piece_data))
+				return false;
+			read_cache.put(this, index, piece_data);
+			ByteBuffer src = piece_data.duplicate();
+			src.limit(block_begin + data.remaining());
+			src.position(block_begin);
+			data.put(src);
+			return true;
+		}
+
+		return read((long) index * piece_length + block_begin, data);
+	}
+
+	boolean read(long offset, ByteBuffer dst) {
+		// Fills the remaining bytes of the buffer starting at the given
+		// torrent offset.
+		try {
+			storage.read(offset, new ByteBuffer[] { dst });
+			return !dst.hasRemaining();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
 	}
 
 }
@@ -0,0 +1,119 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public final class TorrentInputStream extends InputStream {
+	// Reads a region of the torrent, i.e. a file, blocking until the
+	// pieces under the read position are available. Each read moves the
+	// stream position of the torrent, which the Peer uses to request the
+	// pieces ahead of the reader first.
+
+	// Waiting is done in steps so that a closed stream is noticed.
+	private static final long WAIT_STEP = 1000;
+
+	private final Torrent torrent;
+	private final long offset;
+	private final long length;
+
+	private long position;
+	private volatile boolean closed;
+
+	TorrentInputStream(Torrent torrent, long offset, long length) {
+		this.torrent = torrent;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (closed)
+			throw new IOException("stream closed");
+		if (position >= length)
+			return -1;
+		if (len == 0)
+			return 0;
+
+		long torrent_offset = offset + position;
+		int piece_length = torrent.getPieceLength();
+		int index = (int) (torrent_offset / piece_length);
+		int piece_offset = (int) (torrent_offset % piece_length);
+
+		torrent.setStreamPosition(torrent_offset, offset + length);
+		try {
+			while (!torrent.waitForPiece(index, WAIT_STEP)) {
+				if (closed)
+					throw new IOException("stream closed");
+				if (torrent.isClosing())
+					throw new IOException("torrent closed");
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted", e);
+		}
+
+		// Reads don't cross piece boundaries.
+		int n = (int) Math.min(len,
+				Math.min(torrent.getPieceLength(index) - piece_offset, length
+						- position));
+		if (!torrent.read(index, piece_offset, ByteBuffer.wrap(b, off, n)))
+			throw new IOException("read failed at piece " + index);
+
+		position += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		long skipped = Math.min(n, length - position);
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		// Bytes that can be read without blocking, from the current piece.
+		if (closed || position >= length)
+			return 0;
+		long torrent_offset = offset + position;
+		int piece_length = torrent.getPieceLength();
+		int index = (int) (torrent_offset / piece_length);
+		if (!torrent.hasPiece(index))
+			return 0;
+		return (int) Math.min(torrent.getPieceLength(index) - torrent_offset
+				% piece_length, length - position);
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public void seek(long position) {
+		// Moves the read position, within the region.
+		if (position < 0 || position > length)
+			throw new IllegalArgumentException("position: " + position);
+		this.position = position;
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (torrent.getStreamPosition() >= offset
+				&& torrent.getStreamPosition() <= offset + length)
+			torrent.setStreamPosition(-1, 0);
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+public final class WriteCache {
+	// Verified pieces are kept in memory until the byte budget is exceeded,
+	// or until they become too old. They are then flushed in file order,
+	// so that runs of consecutive pieces become a single large write.
+	// Each torrent has its own cache, and the budget is shared by the
+	// caches of all torrents of a client.
+
+	private final MemoryBudget budget;
+	private final long max_age;
+
+	// Pieces waiting to be flushed, and pieces that are being flushed.
+	// Both are sorted by index, hence by torrent offset.
+	private TreeMap<Integer, Piece> dirty = new TreeMap<Integer, Piece>();
+	private TreeMap<Integer, Piece> flushing = new TreeMap<Integer, Piece>();
+
+	private long dirty_bytes;
+	private long flushing_bytes;
+	private long oldest_at;
+
+	private long hits;
+	private long misses;
+	private long flushes;
+	private long flushed_bytes;
+
+	public WriteCache(MemoryBudget budget, long max_age) {
+		// The max_age is measured in nanoseconds.
+		this.budget = budget;
+		this.max_age = max_age;
+	}
+
+	public synchronized void add(Piece piece) {
+		if (dirty.isEmpty())
+			oldest_at = System.nanoTime();
+		if (dirty.put(piece.getIndex(), piece) == null) {
+			dirty_bytes += piece.getLength();
+			budget.forceReserve(piece.getLength());
+		}
+	}
+
+	public boolean isFull() {
+		// The pieces of any torrent may have filled the budget.
+		return budget.isExceeded();
+	}
+
+	public synchronized boolean isExpired() {
+		return !dirty.isEmpty() && System.nanoTime() - oldest_at >= max_age;
+	}
+
+	public synchronized boolean contains(int index) {
+		return dirty.containsKey(index) || flushing.containsKey(index);
+	}
+
+	public synchronized List<Piece> beginFlush() {
+		// Returns the dirty pieces in file order. They remain readable
+		// until endFlush is called, after the data has reached the disk.
+		List<Piece> pieces = new ArrayList<Piece>(dirty.values());
+		flushing.putAll(dirty);
+		flushing_bytes += dirty_bytes;
+		dirty.clear();
+		dirty_bytes = 0;
+		return pieces;
+	}
+
+	public synchronized void endFlush(List<Piece> pieces, int nwrites) {
+		for (Piece piece : pieces) {
+			flushing.remove(piece.getIndex());
+			flushing_bytes -= piece.getLength();
+			flushed_bytes += piece.getLength();
+			budget.release(piece.getLength());
+		}
+		flushes += nwrites;
+	}
+
+	public synchronized boolean read(int index, int offset, ByteBuffer dst) {
+		// Copies the cached region of the piece to the remaining bytes of
+		// the destination buffer. Returns false if the piece isn't cached.
+		Piece piece = dirty.get(index);
+		if (piece == null)
+			piece = flushing.get(index);
+		if (piece == null) {
+			misses++;
+			return false;
+		}
+		ByteBuffer src = piece.getData().duplicate();
+		src.limit(offset + dst.remaining());
+		src.position(offset);
+		dst.put(src);
+		hits++;
+		return true;
+	}
+
+	public long getCapacity() {
+		return budget.getCapacity();
+	}
+
+	public synchronized long getDirtyBytes() {
+		// Bytes not yet on disk, including those being flushed.
+		return dirty_bytes + flushing_bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getFlushes() {
+		// Number of write operations issued by flushes; a run of
+		// consecutive pieces counts as one.
+		return flushes;
+	}
+
+	public synchronized long getFlushedBytes() {
+		return flushed_bytes;
+	}
+
+}
@@ -2,7 +2,9 @@ package com.ndtorrent.client.status;
 
 import java.util.BitSet;
 
+import com.ndtorrent.client.ReadCache;
 import com.ndtorrent.client.Torrent;
+import com.ndtorrent.client.WriteCache;
 
 public final class TorrentInfo {
 
@@ -15,6 +17,14 @@ public final class TorrentInfo {
 	private final long completion_time;
 	private final double input_rate;
 	private final double output_rate;
+	private final long write_cache_hits;
+	private final long write_cache_flushes;
+	private final long write_cache_dirty;
+	private final long read_cache_hits;
+	private final long read_cache_misses;
+	private final boolean is_checking;
+	private final int checked_pieces;
+	private final int bad_pieces;
 
 	public TorrentInfo(Torrent torrent, BitSet missing, long completion_time,
 			double input_rate, double output_rate) {
@@ -28,7 +38,18 @@ public final class TorrentInfo {
 		this.completion_time = completion_time;
 		this.input_rate = input_rate;
 		this.output_rate = output_rate;
-
+		is_checking = torrent.isChecking();
+		checked_pieces = torrent.numCheckedPieces();
+		bad_pieces = torrent.numBadPieces();
+
+		WriteCache cache = torrent.getWriteCache();
+		write_cache_hits = cache != null ? cache.getHits() : 0;
+		write_cache_flushes = cache != null ? cache.getFlushes() : 0;
+		write_cache_dirty = cache != null ? cache.getDirtyBytes() : 0;
+
+		ReadCache read_cache = torrent.getReadCache();
+		read_cache_hits = read_cache != null ? read_cache.getHits() : 0;
+		read_cache_misses = read_cache != null ? read_cache.getMisses() : 0;
 	}
 
 	public BitSet getAvailablePieces() {
@@ -67,4 +88,38 @@ public final class TorrentInfo {
 		return output_rate;
 	}
 
+	public boolean isChecking() {
+		return is_checking;
+	}
+
+	public int numCheckedPieces() {
+		// Progress of the recheck.
+		return checked_pieces;
+	}
+
+	public int numBadPieces() {
+		// Pieces that failed the hash verification.
+		return bad_pieces;
+	}
+
+	public long getWriteCacheHits() {
+		return write_cache_hits;
+	}
+
+	public long getWriteCacheFlushes() {
+		return write_cache_flushes;
+	}
+
+	public long getWriteCacheDirtyBytes() {
+		return write_cache_dirty;
+	}
+
+	public long getReadCacheHits() {
+		return read_cache_hits;
+	}
+
+	public long getReadCacheMisses() {
+		return read_cache_misses;
+	}
+
 }
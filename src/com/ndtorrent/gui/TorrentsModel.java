@@ -72,6 +72,10 @@ public class TorrentsModel extends AbstractTableModel {
 	}
 
 	private String getProgressValue(TorrentInfo info) {
+		if (info.isChecking()) {
+			double p = 100.0 * info.numCheckedPieces() / info.numPieces();
+			return String.format("checking %.1f%%", p);
+		}
 		long total = info.getTotalLength();
 		long remaining = info.getRemainingLength();
 		if (remaining == 0)